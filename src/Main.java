@@ -1,8 +1,17 @@
 import easyaccept.EasyAccept;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
 public class Main {
     public static void main(String[] args) {
         String facade = "br.ufal.ic.p2.wepayu.Facade";
+        // roda antes de qualquer outro script, para que a primeira carga encontre o arquivo antigo
+        prepararArquivoLegado();
+        EasyAccept.main(new String[]{facade, "tests/legado.txt"});
         EasyAccept.main(new String[]{facade, "tests/us1.txt"});
         EasyAccept.main(new String[]{facade, "tests/us1_1.txt"});
         EasyAccept.main(new String[]{facade, "tests/us2.txt"});
@@ -21,7 +30,30 @@ public class Main {
         EasyAccept.main(new String[]{facade, "tests/us9_1.txt"});
         EasyAccept.main(new String[]{facade, "tests/us10.txt"});
         EasyAccept.main(new String[]{facade, "tests/us10_1.txt"});
+        EasyAccept.main(new String[]{facade, "tests/exata.txt"});
+        // o us11 confere os arquivos gravados, entao nao pode achar os de uma execucao anterior
+        apagarArquivos(new File("periodo-1"), "folha-");
+        apagarArquivos(new File("periodo-3"), "folha-");
+        EasyAccept.main(new String[]{facade, "tests/us11.txt"});
+        EasyAccept.main(new String[]{facade, "tests/paralelismo.txt"});
     }
-}
 
+    private static void prepararArquivoLegado() {
+        apagarArquivos(new File("."), "empregados.");
+        try {
+            Files.copy(Paths.get("tests/legado/empregados.ser"), Paths.get("empregados.ser"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao copiar o arquivo legado.", e);
+        }
+    }
 
+    private static void apagarArquivos(File diretorio, String prefixo) {
+        File[] arquivos = diretorio.listFiles((dir, nome) -> nome.startsWith(prefixo));
+        if (arquivos != null) {
+            for (File f : arquivos) {
+                f.delete();
+            }
+        }
+    }
+}
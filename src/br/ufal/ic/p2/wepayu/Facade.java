@@ -110,6 +110,18 @@ public class Facade {
         Database.rodaFolha(data, saida);
     }
 
+    public void rodaFolhaPeriodo(String dataInicial, String dataFinal, String diretorioSaida) {
+        Database.rodaFolhaPeriodo(dataInicial, dataFinal, diretorioSaida);
+    }
+
+    public void alteraParalelismoFolha(String paralelismo) {
+        Database.setParalelismoFolha(paralelismo);
+    }
+
+    public String getParalelismoFolha() {
+        return Database.getParalelismoFolha();
+    }
+
     public String getHorasNormaisTrabalhadas(String empId, String dataInicial, String dataFinal) {
         return Database.getHorasNormaisTrabalhadas(empId, dataInicial, dataFinal);
     }
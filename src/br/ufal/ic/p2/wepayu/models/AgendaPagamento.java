@@ -0,0 +1,225 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Agenda de pagamento ja interpretada ("semanal 5", "semanal 2 5", "mensal 10", "mensal $").
+// E imutavel e unica por descricao: o registro do estado e os empregados guardam a mesma
+// instancia, e a folha consulta os campos e o calendario sem voltar a ler o texto.
+final class AgendaPagamento {
+    enum Tipo {
+        SEMANAL, MENSAL
+    }
+
+    // descricao canonica -> agenda
+    private static final Map<String, AgendaPagamento> INTERNADAS = new ConcurrentHashMap<>();
+    // texto ja interpretado (como veio, sem normalizar) -> agenda
+    private static final Map<String, AgendaPagamento> POR_TEXTO = new ConcurrentHashMap<>();
+
+    private final Tipo tipo;
+    private final int frequenciaSemanas;
+    private final int diaSemana;
+    private final int diaMes;
+    private final boolean ultimoDiaUtil;
+    private final String descricao;
+    private final String chave;
+    // dias de pagamento de cada ano, um bit por dia do ano, montados na primeira consulta
+    private final Map<Integer, long[]> calendario = new ConcurrentHashMap<>();
+
+    private AgendaPagamento(Tipo tipo, int frequenciaSemanas, int diaSemana, int diaMes, boolean ultimoDiaUtil,
+                            String descricao) {
+        this.tipo = tipo;
+        this.frequenciaSemanas = frequenciaSemanas;
+        this.diaSemana = diaSemana;
+        this.diaMes = diaMes;
+        this.ultimoDiaUtil = ultimoDiaUtil;
+        this.descricao = descricao;
+        this.chave = descricao.toLowerCase(Locale.ROOT);
+    }
+
+    static AgendaPagamento semanal(int frequencia, int diaSemana) {
+        validarIntervalo(frequencia, 1, 52);
+        validarIntervalo(diaSemana, 1, 7);
+        String descricao = frequencia == 1
+                ? String.format(Locale.ROOT, "semanal %d", diaSemana)
+                : String.format(Locale.ROOT, "semanal %d %d", frequencia, diaSemana);
+        return internar(new AgendaPagamento(Tipo.SEMANAL, frequencia, diaSemana, 0, false, descricao));
+    }
+
+    static AgendaPagamento mensalDia(int diaMes) {
+        validarIntervalo(diaMes, 1, 28);
+        String descricao = String.format(Locale.ROOT, "mensal %d", diaMes);
+        return internar(new AgendaPagamento(Tipo.MENSAL, 0, 0, diaMes, false, descricao));
+    }
+
+    static AgendaPagamento mensalUltimoDiaUtil() {
+        return internar(new AgendaPagamento(Tipo.MENSAL, 0, 0, 0, true, "mensal $"));
+    }
+
+    private static AgendaPagamento internar(AgendaPagamento agenda) {
+        AgendaPagamento anterior = INTERNADAS.putIfAbsent(agenda.descricao, agenda);
+        return anterior != null ? anterior : agenda;
+    }
+
+    // Agenda descrita pelo texto; lanca IllegalArgumentException se ele nao descreve uma
+    static AgendaPagamento analisar(String agenda) {
+        if (agenda == null) {
+            throw new IllegalArgumentException("Descricao de agenda invalida");
+        }
+
+        String descricao = agenda.trim();
+        if (descricao.isEmpty()) {
+            throw new IllegalArgumentException("Descricao de agenda invalida");
+        }
+
+        String[] partes = descricao.split("\\s+");
+        if (partes.length < 2) {
+            throw new IllegalArgumentException("Descricao de agenda invalida");
+        }
+
+        String tipo = partes[0].toLowerCase(Locale.ROOT);
+        if ("semanal".equals(tipo)) {
+            if (partes.length == 2) {
+                return semanal(1, parseInteiro(partes[1]));
+            } else if (partes.length == 3) {
+                return semanal(parseInteiro(partes[1]), parseInteiro(partes[2]));
+            }
+            throw new IllegalArgumentException("Descricao de agenda invalida");
+        }
+
+        if ("mensal".equals(tipo) && partes.length == 2) {
+            if ("$".equals(partes[1])) {
+                return mensalUltimoDiaUtil();
+            }
+            return mensalDia(parseInteiro(partes[1]));
+        }
+
+        throw new IllegalArgumentException("Descricao de agenda invalida");
+    }
+
+    // Como analisar, mas devolve null para texto invalido; cada texto so e lido uma vez
+    static AgendaPagamento interpretar(String texto) {
+        if (texto == null) {
+            return null;
+        }
+        AgendaPagamento agenda = POR_TEXTO.get(texto);
+        if (agenda == null) {
+            try {
+                agenda = analisar(texto);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            POR_TEXTO.putIfAbsent(texto, agenda);
+        }
+        return agenda;
+    }
+
+    private static int parseInteiro(String valor) {
+        try {
+            return Integer.parseInt(valor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Descricao de agenda invalida");
+        }
+    }
+
+    private static void validarIntervalo(int valor, int minimo, int maximo) {
+        if (valor < minimo || valor > maximo) {
+            throw new IllegalArgumentException("Descricao de agenda invalida");
+        }
+    }
+
+    boolean isSemanal() {
+        return tipo == Tipo.SEMANAL;
+    }
+
+    int getFrequenciaSemanas() {
+        return frequenciaSemanas;
+    }
+
+    int getDiaMes() {
+        return diaMes;
+    }
+
+    boolean isUltimoDiaUtil() {
+        return ultimoDiaUtil;
+    }
+
+    String getDescricao() {
+        return descricao;
+    }
+
+    String getChave() {
+        return chave;
+    }
+
+    boolean pagaEm(LocalDate dia) {
+        long[] dias = calendario.computeIfAbsent(dia.getYear(), this::calendarioDoAno);
+        int i = dia.getDayOfYear() - 1;
+        return (dias[i >>> 6] & (1L << i)) != 0;
+    }
+
+    // Ultimo dia de pagamento antes de 'dia', ou null se a agenda ainda nao pagava
+    LocalDate ultimoPagamentoAntes(LocalDate dia) {
+        if (tipo == Tipo.SEMANAL) {
+            // os pagamentos semanais ficam a frequenciaSemanas semanas um do outro
+            for (int i = 1; i <= frequenciaSemanas * 7; i++) {
+                LocalDate candidato = dia.minusDays(i);
+                if (pagaEm(candidato)) {
+                    return candidato;
+                }
+            }
+            return null;
+        }
+        LocalDate anterior = dia.minusDays(1);
+        LocalDate candidato = pagamentoDoMes(anterior);
+        return candidato.isAfter(anterior) ? pagamentoDoMes(anterior.minusMonths(1)) : candidato;
+    }
+
+    // dia de pagamento de uma agenda mensal no mes de 'dia'
+    private LocalDate pagamentoDoMes(LocalDate dia) {
+        return ultimoDiaUtil ? ultimoDiaUtilDoMes(dia) : dia.withDayOfMonth(diaMes);
+    }
+
+    private long[] calendarioDoAno(int ano) {
+        long[] dias = new long[6];
+        LocalDate dia = LocalDate.of(ano, 1, 1);
+        for (int i = 0; dia.getYear() == ano; i++, dia = dia.plusDays(1)) {
+            if (calcularSePaga(dia)) {
+                dias[i >>> 6] |= 1L << i;
+            }
+        }
+        return dias;
+    }
+
+    private boolean calcularSePaga(LocalDate dia) {
+        if (tipo == Tipo.SEMANAL) {
+            if (dia.getDayOfWeek() != DayOfWeek.of(diaSemana)) {
+                return false;
+            }
+            long semanas = ChronoUnit.WEEKS.between(LocalDate.of(2005, 1, 1), dia);
+            long ajuste = frequenciaSemanas - 1L;
+            if (semanas < ajuste) {
+                return false;
+            }
+            return frequenciaSemanas == 1
+                    || semanas % frequenciaSemanas == ajuste;
+        }
+
+        if (ultimoDiaUtil) {
+            return dia.equals(ultimoDiaUtilDoMes(dia));
+        }
+        return dia.getDayOfMonth() == diaMes;
+    }
+
+    static LocalDate ultimoDiaUtilDoMes(LocalDate referencia) {
+        LocalDate ultimo = referencia.withDayOfMonth(referencia.lengthOfMonth());
+        while (ultimo.getDayOfWeek() == DayOfWeek.SATURDAY || ultimo.getDayOfWeek() == DayOfWeek.SUNDAY) {
+            ultimo = ultimo.minusDays(1);
+        }
+        return ultimo;
+    }
+}
@@ -0,0 +1,164 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Colunas mapeadas em memoria com os lancamentos de um tipo. Cada mes tem o seu arquivo
+// (<prefixo>aaaa-mm), dividido em blocos de LINHAS_POR_BLOCO linhas; dentro de um bloco ficam em
+// sequencia as colunas de empregado (int), dia desde 1970 (int) e valor (double). Lancamentos cuja
+// data nao esta na forma d/M/yyyy vao para o arquivo <prefixo>outros e o texto dela fica em memoria.
+//
+// As linhas so sao acrescentadas: versoes antigas das series (undo, checkpoint em andamento)
+// continuam lendo as suas. Os arquivos nao sao a fonte dos dados, que continuam no checkpoint e
+// no diario; eles sao recriados a cada carga do banco.
+final class ArmazemMapeado {
+    private static final int LINHAS_POR_BLOCO = 4096;
+    private static final int COLUNA_DIA = LINHAS_POR_BLOCO * 4;
+    private static final int COLUNA_VALOR = LINHAS_POR_BLOCO * 8;
+    private static final int BYTES_POR_BLOCO = LINHAS_POR_BLOCO * 16;
+    private static final int MES_POR_EXTENSO = -1;
+
+    private final String prefixo;
+    // indice do segmento em 'segmentos' por mes (ano * 12 + mes - 1)
+    private final Map<Integer, Integer> segmentoDoMes = new HashMap<>();
+    private volatile Segmento[] segmentos = new Segmento[0];
+    // indice do segmento <prefixo>outros, ou -1 enquanto ele nao existe
+    private volatile int segmentoPorExtenso = -1;
+    private final Map<Long, String> datasPorExtenso = new ConcurrentHashMap<>();
+
+    ArmazemMapeado(String prefixo) {
+        this.prefixo = prefixo;
+        apagarArquivos();
+    }
+
+    // Grava uma linha e devolve a sua referencia: segmento nos 32 bits altos, linha nos baixos
+    synchronized long acrescentar(int empregado, int dia, String dataPorExtenso, double valor) {
+        int mes = dataPorExtenso != null ? MES_POR_EXTENSO : mesDoDia(dia);
+        Integer indice = segmentoDoMes.get(mes);
+        if (indice == null) {
+            indice = segmentos.length;
+            Segmento[] novos = Arrays.copyOf(segmentos, indice + 1);
+            novos[indice] = new Segmento(arquivo(mes));
+            segmentos = novos;
+            segmentoDoMes.put(mes, indice);
+            if (mes == MES_POR_EXTENSO) {
+                segmentoPorExtenso = indice;
+            }
+        }
+        Segmento segmento = segmentos[indice];
+        int linha = segmento.linhas;
+        MappedByteBuffer bloco = segmento.blocoParaGravar(linha / LINHAS_POR_BLOCO);
+        int posicao = linha % LINHAS_POR_BLOCO;
+        bloco.putInt(posicao * 4, empregado);
+        bloco.putInt(COLUNA_DIA + posicao * 4, dia);
+        bloco.putDouble(COLUNA_VALOR + posicao * 8, valor);
+        segmento.linhas = linha + 1;
+        long referencia = ((long) indice << 32) | linha;
+        if (dataPorExtenso != null) {
+            datasPorExtenso.put(referencia, dataPorExtenso);
+        }
+        return referencia;
+    }
+
+    int dia(long referencia) {
+        int linha = (int) referencia;
+        return bloco(referencia).getInt(COLUNA_DIA + (linha % LINHAS_POR_BLOCO) * 4);
+    }
+
+    String dataPorExtenso(long referencia) {
+        return (int) (referencia >>> 32) == segmentoPorExtenso ? datasPorExtenso.get(referencia) : null;
+    }
+
+    double valor(long referencia) {
+        int linha = (int) referencia;
+        return bloco(referencia).getDouble(COLUNA_VALOR + (linha % LINHAS_POR_BLOCO) * 8);
+    }
+
+    // Fecha e apaga os arquivos; as referencias ja entregues deixam de valer
+    synchronized void descartar() {
+        for (Segmento segmento : segmentos) {
+            segmento.fechar();
+        }
+        segmentos = new Segmento[0];
+        segmentoDoMes.clear();
+        segmentoPorExtenso = -1;
+        datasPorExtenso.clear();
+        apagarArquivos();
+    }
+
+    private MappedByteBuffer bloco(long referencia) {
+        int linha = (int) referencia;
+        return segmentos[(int) (referencia >>> 32)].blocos[linha / LINHAS_POR_BLOCO];
+    }
+
+    private static int mesDoDia(int dia) {
+        LocalDate data = LocalDate.ofEpochDay(dia);
+        return data.getYear() * 12 + data.getMonthValue() - 1;
+    }
+
+    private File arquivo(int mes) {
+        if (mes == MES_POR_EXTENSO) {
+            return new File(prefixo + "outros");
+        }
+        return new File(String.format("%s%04d-%02d", prefixo, mes / 12, mes % 12 + 1));
+    }
+
+    private void apagarArquivos() {
+        File[] arquivos = new File(".").listFiles();
+        if (arquivos == null) {
+            return;
+        }
+        for (File f : arquivos) {
+            if (f.getName().startsWith(prefixo)) {
+                f.delete();
+            }
+        }
+    }
+
+    private static final class Segmento {
+        private final FileChannel canal;
+        private volatile MappedByteBuffer[] blocos = new MappedByteBuffer[0];
+        private int linhas;
+
+        private Segmento(File arquivo) {
+            try {
+                canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                throw new RuntimeException("Erro ao mapear historico de lancamentos.", e);
+            }
+        }
+
+        private MappedByteBuffer blocoParaGravar(int numero) {
+            if (numero < blocos.length) {
+                return blocos[numero];
+            }
+            try {
+                MappedByteBuffer bloco = canal.map(FileChannel.MapMode.READ_WRITE,
+                        (long) numero * BYTES_POR_BLOCO, BYTES_POR_BLOCO);
+                MappedByteBuffer[] novos = Arrays.copyOf(blocos, numero + 1);
+                novos[numero] = bloco;
+                blocos = novos;
+                return bloco;
+            } catch (IOException e) {
+                throw new RuntimeException("Erro ao mapear historico de lancamentos.", e);
+            }
+        }
+
+        private void fechar() {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // os arquivos serao apagados de qualquer forma
+            }
+        }
+    }
+}
@@ -1,15 +1,29 @@
 package br.ufal.ic.p2.wepayu.models;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 public class CartaoPonto implements Serializable {
-    private String data;
+    private static final long serialVersionUID = -7832197358869752109L;
+    // grava no formato antigo, com a data como texto
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("data", String.class),
+            new ObjectStreamField("horas", double.class)
+    };
+
+    private int dia;
+    private String dataPorExtenso;
     private double horas;
 
     public CartaoPonto(String data, String horasStr) {
         if (data == null || data.trim().isEmpty()) {
             throw new IllegalArgumentException("Data invalida.");
         }
+        int dia = Datas.diaDoLancamento(data);
         if (horasStr == null || horasStr.trim().isEmpty()) {
             throw new IllegalArgumentException("Horas devem ser positivas.");
         }
@@ -25,14 +39,51 @@ public class CartaoPonto implements Serializable {
             throw new IllegalArgumentException("Horas devem ser positivas.");
         }
 
-        this.data = data;
+        this.dia = dia;
+        this.dataPorExtenso = Datas.porExtenso(data, dia);
+    }
+
+    // usado ao reler registros ja validados
+    CartaoPonto(int dia, String dataPorExtenso, double horas) {
+        this.dia = dia;
+        this.dataPorExtenso = dataPorExtenso;
+        this.horas = horas;
     }
 
     public String getData() {
-        return data;
+        return dataPorExtenso != null ? dataPorExtenso : Datas.texto(dia);
+    }
+
+    // dia desde 1970
+    int getDia() {
+        return dia;
+    }
+
+    // o texto da data quando ela nao esta na forma d/M/yyyy, ou null
+    String getDataPorExtenso() {
+        return dataPorExtenso;
     }
 
     public double getHoras() {
         return horas;
     }
-}
\ No newline at end of file
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField campos = out.putFields();
+        campos.put("data", getData());
+        campos.put("horas", horas);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField campos = in.readFields();
+        String texto = (String) campos.get("data", null);
+        try {
+            dia = Datas.diaDoLancamento(texto);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException("Data invalida.");
+        }
+        dataPorExtenso = Datas.porExtenso(texto, dia);
+        horas = campos.get("horas", 0.0);
+    }
+}
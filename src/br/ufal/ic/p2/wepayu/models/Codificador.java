@@ -0,0 +1,151 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Grava e rele versoes de Empregado em formato binario. Uma versao pode ser gravada em relacao
+// a outra (base): como os historicos so crescem, um historico que e prefixo do da base vira
+// apenas o seu tamanho, e um que estende o da base grava so os itens acrescentados.
+final class Codificador {
+    private static final int HISTORICO_COMPLETO = -1;
+    private static final int HISTORICO_ESTENDIDO = -2;
+
+    private Codificador() {
+    }
+
+    // Empregados que diferem entre 'alvo' e 'base': ids ausentes do alvo e versoes do alvo
+    // gravadas em relacao as da base. lerDiferenca aplica o resultado sobre a mesma base.
+    static void escreverDiferenca(DataOutput out, Estado alvo, Estado base) throws IOException {
+        List<Empregado> alterados = new ArrayList<>();
+        List<String> ausentes = new ArrayList<>();
+        alvo.diferencasEmpregados(base, (id, aqui, noOutro) -> {
+            if (aqui == null) {
+                ausentes.add(id);
+            } else {
+                alterados.add(aqui);
+            }
+        });
+        out.writeInt(ausentes.size());
+        for (String id : ausentes) {
+            out.writeUTF(id);
+        }
+        out.writeInt(alterados.size());
+        for (Empregado e : alterados) {
+            escreverEmpregado(out, e, base.getEmpregado(e.getId()));
+        }
+    }
+
+    static Estado lerDiferenca(DataInput in, Estado base) throws IOException {
+        Estado resultado = base;
+        for (int i = in.readInt(); i > 0; i--) {
+            resultado = resultado.semEmpregado(in.readUTF());
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            resultado = resultado.comEmpregado(lerEmpregado(in, base));
+        }
+        return resultado;
+    }
+
+    static void escreverEmpregado(DataOutput out, Empregado e, Empregado base) throws IOException {
+        out.writeUTF(e.getId());
+        out.writeUTF(e.getNome());
+        out.writeUTF(e.getEndereco());
+        out.writeUTF(e.getTipo());
+        out.writeDouble(e.getSalario());
+        out.writeBoolean(e.getComissao() != null);
+        if (e.getComissao() != null) {
+            out.writeDouble(e.getComissao());
+        }
+        out.writeBoolean(e.isSindicalizado());
+        escreverOpcional(out, e.getIdSindicato());
+        out.writeDouble(e.getTaxaSindical());
+        escreverOpcional(out, e.getMetodoPagamento());
+        escreverOpcional(out, e.getBanco());
+        escreverOpcional(out, e.getAgencia());
+        escreverOpcional(out, e.getContaCorrente());
+        escreverOpcional(out, e.getAgendaPagamento());
+
+        escreverNovosItens(out, e.serieDeCartoes(), base == null ? null : base.serieDeCartoes());
+        escreverNovosItens(out, e.serieDeVendas(), base == null ? null : base.serieDeVendas());
+        escreverNovosItens(out, e.serieDeTaxas(), base == null ? null : base.serieDeTaxas());
+    }
+
+    static Empregado lerEmpregado(DataInput in, Estado base) throws IOException {
+        String id = in.readUTF();
+        return lerEmpregado(in, id, base.getEmpregado(id));
+    }
+
+    private static Empregado lerEmpregado(DataInput in, String id, Empregado base) throws IOException {
+        Empregado e = new Empregado(id);
+        e.setNome(in.readUTF());
+        e.setEndereco(in.readUTF());
+        e.setTipo(in.readUTF());
+        e.setSalario(in.readDouble());
+        e.setComissao(in.readBoolean() ? in.readDouble() : null);
+        e.setSindicalizado(in.readBoolean());
+        e.setIdSindicato(lerOpcional(in));
+        e.setTaxaSindical(in.readDouble());
+        e.setMetodoPagamento(lerOpcional(in));
+        e.setBanco(lerOpcional(in));
+        e.setAgencia(lerOpcional(in));
+        e.setContaCorrente(lerOpcional(in));
+        e.setAgendaPagamento(lerOpcional(in));
+
+        Serie<CartaoPonto> cartoes = lerSerie(in, TipoLancamento.CARTOES, id, base == null ? null : base.serieDeCartoes());
+        Serie<Venda> vendas = lerSerie(in, TipoLancamento.VENDAS, id, base == null ? null : base.serieDeVendas());
+        Serie<TaxaServico> taxas = lerSerie(in, TipoLancamento.TAXAS, id, base == null ? null : base.serieDeTaxas());
+        e.definirHistoricos(cartoes, vendas, taxas);
+        return e;
+    }
+
+    // Escreve como a serie se relaciona com a da base, a quantidade de itens que precisam ir
+    // por extenso e esses itens.
+    private static <T> void escreverNovosItens(DataOutput out, Serie<T> atual, Serie<T> anterior) throws IOException {
+        int inicio;
+        if (anterior != null && atual.ehPrefixoDe(anterior)) {
+            out.writeInt(atual.size());
+            inicio = atual.size();
+        } else if (anterior != null && anterior.ehPrefixoDe(atual)) {
+            out.writeInt(HISTORICO_ESTENDIDO);
+            inicio = anterior.size();
+        } else {
+            out.writeInt(HISTORICO_COMPLETO);
+            inicio = 0;
+        }
+        out.writeInt(atual.size() - inicio);
+        for (int i = inicio; i < atual.size(); i++) {
+            out.writeUTF(atual.data(i));
+            out.writeDouble(atual.valor(i));
+        }
+    }
+
+    private static <T> Serie<T> lerSerie(DataInput in, TipoLancamento<T> tipo, String dono, Serie<T> base) throws IOException {
+        int modo = in.readInt();
+        Serie<T> serie;
+        if (modo == HISTORICO_COMPLETO) {
+            serie = Serie.vazia(tipo, dono);
+        } else if (modo == HISTORICO_ESTENDIDO) {
+            serie = base;
+        } else {
+            serie = base.prefixo(modo);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            serie = serie.com(tipo.criar(in.readUTF(), in.readDouble()));
+        }
+        return serie;
+    }
+
+    static void escreverOpcional(DataOutput out, String valor) throws IOException {
+        out.writeBoolean(valor != null);
+        if (valor != null) {
+            out.writeUTF(valor);
+        }
+    }
+
+    static String lerOpcional(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
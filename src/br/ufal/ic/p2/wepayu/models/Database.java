@@ -1,28 +1,52 @@
 package br.ufal.ic.p2.wepayu.models;
 
 import java.io.*;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.time.DayOfWeek;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.LocalDate;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import br.ufal.ic.p2.wepayu.models.Historico.Snapshot;
 
 public class Database {
     private static final String ARQUIVO = "empregados.ser";
-    private static Map<String, Empregado> empregados = new HashMap<>();
-    private static Deque<Snapshot> undoStack = new ArrayDeque<>();
-    private static Deque<Snapshot> redoStack = new ArrayDeque<>();
-    private static boolean sistemaEncerrado = false;
+    // estado e numero da versao, publicados juntos; o numero nunca volta, nem no undo. A versao e
+    // publicada com o registro ja no diario, mas o comando so volta depois do force, fora de ESCRITA
+    private static volatile Versao raiz = new Versao(Estado.VAZIO, 0);
+    private static final Object ESCRITA = new Object();
+    private static Historico undoStack = new Historico();
+    private static Historico redoStack = new Historico();
+    private static Diario diario;
+    // proximoId do ultimo registro do diario; o undo pode voltar o contador sem mudar o estado
+    private static int proximoIdPublicado;
+    private static volatile boolean sistemaEncerrado = false;
     private static boolean descartarHistoricoNoProximoZerar = true;
+    // limite do proprio ForkJoinPool
+    private static final int PARALELISMO_MAXIMO = 32767;
+    // threads que calculam a folha; com 1, ela e calculada na thread do proprio comando
+    private static volatile int paralelismoFolha = Math.min(PARALELISMO_MAXIMO,
+            Math.max(1, Integer.getInteger("wepayu.folha.paralelismo", 1)));
+    // pool do paralelismo atual; um pool trocado so e desligado quando nenhuma folha o esta usando
+    private static ForkJoinPool poolFolha;
+    private static final Map<ForkJoinPool, Integer> folhasPorPool = new IdentityHashMap<>();
+    // folhas por (data, versao), da menos para a mais recentemente usada
+    private static final int FOLHAS_EM_CACHE = Math.max(0, Integer.getInteger("wepayu.folha.cache", 16));
+    private static final Map<ChaveFolha, FolhaPagamento> folhasCalculadas = novoCacheDeFolhas();
+    // totais de totalFolha calculados sem a folha inteira; usa o mesmo lock de folhasCalculadas
+    private static final Map<ChaveFolha, String> totaisCalculados = novoCacheDeFolhas();
     private static final String AGENDA_SEMANAL = "semanal 5";
     private static final String AGENDA_BISEMANAL = "semanal 2 5";
     private static final String AGENDA_MENSAL = "mensal $";
@@ -31,143 +55,33 @@ public class Database {
             AGENDA_BISEMANAL,
             AGENDA_MENSAL
     );
-    private static final Map<String, String> AGENDAS_DISPONIVEIS = new HashMap<>();
-    private static Set<String> agendasPersonalizadas = new HashSet<>();
-
     public static void iniciarNovoScript() {
-        if (sistemaEncerrado) {
-            carregar();
-        }
-        descartarHistoricoNoProximoZerar = true;
-    }
-
-    static {
-        reiniciarAgendasDisponiveis();
-        carregar();
-    }
-
-    private static void registrarAgendaPadrao(String agenda) {
-        AGENDAS_DISPONIVEIS.put(agenda.toLowerCase(Locale.ROOT), agenda);
-    }
-
-    private static void reiniciarAgendasDisponiveis() {
-        AGENDAS_DISPONIVEIS.clear();
-        for (String descricao : AGENDAS_PADRAO_DESCRICOES) {
-            AgendaInfo info = interpretarAgenda(descricao);
-            if (info != null) {
-                registrarAgenda(info, false);
-            }
-        }
-        agendasPersonalizadas.clear();
-    }
-
-    private static void registrarAgenda(AgendaInfo info, boolean personalizada) {
-        if (info == null) {
-            return;
-        }
-        AGENDAS_DISPONIVEIS.put(info.chave, info.descricao);
-        if (personalizada) {
-            agendasPersonalizadas.add(info.descricao);
-        }
-    }
-
-    private static AgendaInfo analisarNovaAgenda(String agenda) {
-        if (agenda == null) {
-            throw new IllegalArgumentException("Descricao de agenda invalida");
-        }
-
-        String descricao = agenda.trim();
-        if (descricao.isEmpty()) {
-            throw new IllegalArgumentException("Descricao de agenda invalida");
-        }
-
-        String[] partes = descricao.split("\\s+");
-        if (partes.length < 2) {
-            throw new IllegalArgumentException("Descricao de agenda invalida");
-        }
-
-        String tipo = partes[0].toLowerCase(Locale.ROOT);
-        if ("semanal".equals(tipo)) {
-            if (partes.length == 2) {
-                int diaSemana = parseInteiro(partes[1]);
-                validarIntervalo(diaSemana, 1, 7);
-                return AgendaInfo.semanal(1, diaSemana);
-            } else if (partes.length == 3) {
-                int frequencia = parseInteiro(partes[1]);
-                int diaSemana = parseInteiro(partes[2]);
-                validarIntervalo(frequencia, 1, 52);
-                validarIntervalo(diaSemana, 1, 7);
-                return AgendaInfo.semanal(frequencia, diaSemana);
-            }
-            throw new IllegalArgumentException("Descricao de agenda invalida");
-        }
-
-        if ("mensal".equals(tipo) && partes.length == 2) {
-            if ("$".equals(partes[1])) {
-                return AgendaInfo.mensalUltimoDiaUtil();
-            }
-            int diaMes = parseInteiro(partes[1]);
-            validarIntervalo(diaMes, 1, 28);
-            return AgendaInfo.mensalDia(diaMes);
-        }
-
-        throw new IllegalArgumentException("Descricao de agenda invalida");
-    }
-
-    private static AgendaInfo interpretarAgenda(String descricao) {
-        if (descricao == null) {
-            return null;
-        }
-        String texto = descricao.trim();
-        if (texto.isEmpty()) {
-            return null;
-        }
-        String[] partes = texto.split("\\s+");
-        if (partes.length < 2) {
-            return null;
-        }
-        String tipo = partes[0].toLowerCase(Locale.ROOT);
-        try {
-            if ("semanal".equals(tipo)) {
-                if (partes.length == 2) {
-                    int diaSemana = parseInteiro(partes[1]);
-                    return AgendaInfo.semanal(1, diaSemana);
-                }
-                if (partes.length == 3) {
-                    int frequencia = parseInteiro(partes[1]);
-                    int diaSemana = parseInteiro(partes[2]);
-                    return AgendaInfo.semanal(frequencia, diaSemana);
-                }
-                return null;
-            }
-            if ("mensal".equals(tipo) && partes.length == 2) {
-                if ("$".equals(partes[1])) {
-                    return AgendaInfo.mensalUltimoDiaUtil();
-                }
-                int diaMes = parseInteiro(partes[1]);
-                return AgendaInfo.mensalDia(diaMes);
+        synchronized (ESCRITA) {
+            if (sistemaEncerrado) {
+                carregar();
             }
-        } catch (IllegalArgumentException e) {
-            return null;
+            descartarHistoricoNoProximoZerar = true;
         }
-        return null;
     }
 
-    private static int parseInteiro(String valor) {
+    // uma carga que falha deixa o sistema encerrado, e o proximo script tenta de novo
+    static {
         try {
-            return Integer.parseInt(valor);
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Descricao de agenda invalida");
+            carregar();
+        } catch (RuntimeException e) {
+            sistemaEncerrado = true;
         }
     }
 
-    private static void validarIntervalo(int valor, int minimo, int maximo) {
-        if (valor < minimo || valor > maximo) {
-            throw new IllegalArgumentException("Descricao de agenda invalida");
+    private static Estado estadoInicial() {
+        Estado inicial = Estado.VAZIO;
+        for (String descricao : AGENDAS_PADRAO_DESCRICOES) {
+            inicial = inicial.comAgenda(AgendaPagamento.analisar(descricao), false);
         }
+        return inicial;
     }
 
-    private static String validarAgendaPagamento(String agenda) {
+    private static AgendaPagamento validarAgendaPagamento(String agenda) {
         if (agenda == null) {
             throw new IllegalArgumentException("Agenda de pagamento nao esta disponivel");
         }
@@ -175,57 +89,13 @@ public class Database {
         if (chave.isEmpty()) {
             throw new IllegalArgumentException("Agenda de pagamento nao esta disponivel");
         }
-        String disponivel = AGENDAS_DISPONIVEIS.get(chave);
+        AgendaPagamento disponivel = estado().getAgenda(chave);
         if (disponivel == null) {
             throw new IllegalArgumentException("Agenda de pagamento nao esta disponivel");
         }
         return disponivel;
     }
 
-    private enum TipoAgenda {
-        SEMANAL, MENSAL
-    }
-
-    private static final class AgendaInfo {
-        private final TipoAgenda tipo;
-        private final int frequenciaSemanas;
-        private final int diaSemana;
-        private final Integer diaMes;
-        private final boolean ultimoDiaUtil;
-        private final String descricao;
-        private final String chave;
-
-        private AgendaInfo(TipoAgenda tipo, int frequenciaSemanas, int diaSemana,
-                           Integer diaMes, boolean ultimoDiaUtil, String descricao) {
-            this.tipo = tipo;
-            this.frequenciaSemanas = frequenciaSemanas;
-            this.diaSemana = diaSemana;
-            this.diaMes = diaMes;
-            this.ultimoDiaUtil = ultimoDiaUtil;
-            this.descricao = descricao;
-            this.chave = descricao.toLowerCase(Locale.ROOT);
-        }
-
-        private static AgendaInfo semanal(int frequencia, int diaSemana) {
-            validarIntervalo(frequencia, 1, 52);
-            validarIntervalo(diaSemana, 1, 7);
-            String descricao = frequencia == 1
-                    ? String.format(Locale.ROOT, "semanal %d", diaSemana)
-                    : String.format(Locale.ROOT, "semanal %d %d", frequencia, diaSemana);
-            return new AgendaInfo(TipoAgenda.SEMANAL, frequencia, diaSemana, null, false, descricao);
-        }
-
-        private static AgendaInfo mensalDia(int diaMes) {
-            validarIntervalo(diaMes, 1, 28);
-            String descricao = String.format(Locale.ROOT, "mensal %d", diaMes);
-            return new AgendaInfo(TipoAgenda.MENSAL, 0, 0, diaMes, false, descricao);
-        }
-
-        private static AgendaInfo mensalUltimoDiaUtil() {
-            return new AgendaInfo(TipoAgenda.MENSAL, 0, 0, null, true, "mensal $");
-        }
-    }
-
     private static String agendaPadrao(String tipo) {
         if ("horista".equals(tipo)) {
             return AGENDA_SEMANAL;
@@ -243,34 +113,34 @@ public class Database {
         if (empregado.getAgendaPagamento() == null || empregado.getAgendaPagamento().trim().isEmpty()) {
             empregado.setAgendaPagamento(agendaPadrao(empregado.getTipo()));
         } else {
-            empregado.setAgendaPagamento(validarAgendaPagamento(empregado.getAgendaPagamento()));
+            empregado.setAgenda(validarAgendaPagamento(empregado.getAgendaPagamento()));
         }
     }
 
     public static void criarAgendaDePagamentos(String descricao) {
         executarComando(() -> {
-            AgendaInfo info = analisarNovaAgenda(descricao);
-            if (AGENDAS_DISPONIVEIS.containsKey(info.chave)) {
+            AgendaPagamento agenda = AgendaPagamento.analisar(descricao);
+            if (estado().contemAgenda(agenda.getChave())) {
                 throw new IllegalArgumentException("Agenda de pagamentos ja existe");
             }
-            registrarAgenda(info, true);
+            return estado().comAgenda(agenda, true);
         });
     }
 
 
     public static String adicionarEmpregado(Empregado empregado) {
-        return executarComando(() -> {
+        executarComando(() -> {
             garantirAgenda(empregado);
-            empregados.put(empregado.getId(), empregado);
-            return empregado.getId();
+            return estado().comEmpregado(empregado);
         });
+        return empregado.getId();
     }
 
     public static Empregado getEmpregado(String id) {
         if (id == null || id.trim().isEmpty()) {
             throw new IllegalArgumentException("Identificacao do empregado nao pode ser nula.");
         }
-        Empregado e = empregados.get(id);
+        Empregado e = estado().getEmpregado(id);
         if (e == null) {
             throw new IllegalArgumentException("Empregado nao existe.");
         }
@@ -282,15 +152,15 @@ public class Database {
             if (id == null || id.trim().isEmpty()) {
                 throw new IllegalArgumentException("Identificacao do empregado nao pode ser nula.");
             }
-            if (!empregados.containsKey(id)) {
+            if (!estado().contemEmpregado(id)) {
                 throw new IllegalArgumentException("Empregado nao existe.");
             }
-            empregados.remove(id);
+            return estado().semEmpregado(id);
         });
     }
 
     public static int getNumeroDeEmpregados() {
-        return empregados.size();
+        return estado().getNumeroDeEmpregados();
     }
 
     public static String getEmpregadoPorNome(String nome, int indice) {
@@ -298,31 +168,27 @@ public class Database {
             throw new IllegalArgumentException("Nome nao pode ser nulo.");
         }
 
-        List<Empregado> encontrados = new ArrayList<>();
-        for (Empregado e : empregados.values()) {
-            if (e.getNome().equalsIgnoreCase(nome)) {
-                encontrados.add(e);
-            }
-        }
+        String[] encontrados = estado().getIdsPorNome(nome);
 
-        if (encontrados.isEmpty()) {
+        if (encontrados.length == 0) {
             throw new IllegalArgumentException("Nao ha empregado com esse nome.");
         }
 
-        if (indice <= 0 || indice > encontrados.size()) {
+        if (indice <= 0 || indice > encontrados.length) {
             throw new IllegalArgumentException("Indice invalido.");
         }
 
-        return encontrados.get(indice - 1).getId();
+        return encontrados[indice - 1];
     }
 
     public static void alteraEmpregado(String empId, String atributo, String valor) {
         executarComando(() -> {
-            Empregado e = getEmpregado(empId);
+            Empregado atual = getEmpregado(empId);
 
             if (atributo == null || atributo.trim().isEmpty()) {
                 throw new IllegalArgumentException("Atributo nao pode ser nulo.");
             }
+            Empregado e = atual.copiar();
 
             switch (atributo.toLowerCase()) {
                 case "nome":
@@ -355,33 +221,37 @@ public class Database {
                 default:
                     throw new IllegalArgumentException("Atributo nao existe.");
             }
+            return estado().comEmpregado(e);
         });
     }
 
     public static void alteraEmpregado(String empId, String atributo, String valor,
                                        String idSindicato, String taxaSindical) {
         executarComando(() -> {
-            Empregado e = getEmpregado(empId);
+            Empregado atual = getEmpregado(empId);
 
             if (atributo == null || atributo.trim().isEmpty()) {
                 throw new IllegalArgumentException("Atributo nao pode ser nulo.");
             }
+            Empregado e = atual.copiar();
 
             if (!"sindicalizado".equalsIgnoreCase(atributo)) {
                 throw new IllegalArgumentException("Atributo nao existe.");
             }
 
             alterarSindicalizado(e, valor, idSindicato, taxaSindical);
+            return estado().comEmpregado(e);
         });
     }
 
     public static void alteraEmpregado(String empId, String atributo, String valor, String valorAuxiliar) {
         executarComando(() -> {
-            Empregado e = getEmpregado(empId);
+            Empregado atual = getEmpregado(empId);
 
             if (atributo == null || atributo.trim().isEmpty()) {
                 throw new IllegalArgumentException("Atributo nao pode ser nulo.");
             }
+            Empregado e = atual.copiar();
 
             if ("tipo".equalsIgnoreCase(atributo)) {
                 alterarTipo(e, valor, valorAuxiliar);
@@ -390,23 +260,26 @@ public class Database {
             } else {
                 throw new IllegalArgumentException("Atributo nao existe.");
             }
+            return estado().comEmpregado(e);
         });
     }
 
     public static void alteraEmpregado(String empId, String atributo, String valor1,
                                        String banco, String agencia, String contaCorrente) {
         executarComando(() -> {
-            Empregado e = getEmpregado(empId);
+            Empregado atual = getEmpregado(empId);
 
             if (atributo == null || atributo.trim().isEmpty()) {
                 throw new IllegalArgumentException("Atributo nao pode ser nulo.");
             }
+            Empregado e = atual.copiar();
 
             if (!"metodopagamento".equalsIgnoreCase(atributo)) {
                 throw new IllegalArgumentException("Atributo nao existe.");
             }
 
             alterarMetodoPagamento(e, valor1, banco, agencia, contaCorrente);
+            return estado().comEmpregado(e);
         });
     }
 
@@ -439,10 +312,9 @@ public class Database {
             throw new IllegalArgumentException("Taxa sindical deve ser nao-negativa.");
         }
 
-        for (Empregado outro : empregados.values()) {
-            if (outro != e && outro.isSindicalizado() && idSindicato.equals(outro.getIdSindicato())) {
-                throw new IllegalArgumentException("Ha outro empregado com esta identificacao de sindicato");
-            }
+        Empregado outro = estado().getMembro(idSindicato);
+        if (outro != null && !outro.getId().equals(e.getId())) {
+            throw new IllegalArgumentException("Ha outro empregado com esta identificacao de sindicato");
         }
 
         e.setSindicalizado(true);
@@ -516,7 +388,7 @@ public class Database {
     }
 
     private static void alterarAgendaPagamento(Empregado e, String agenda) {
-        e.setAgendaPagamento(validarAgendaPagamento(agenda));
+        e.setAgenda(validarAgendaPagamento(agenda));
     }
 
     private static double parseSalario(String valor) {
@@ -570,7 +442,9 @@ public class Database {
             validarDataSimples(data);
 
             CartaoPonto cartao = new CartaoPonto(data, horas);
-            e.adicionarCartao(cartao);
+            Empregado novo = e.copiar();
+            novo.adicionarCartao(cartao);
+            return estado().comEmpregado(novo);
         });
     }
 
@@ -589,7 +463,9 @@ public class Database {
             validarDataSimples(data);
 
             Venda v = new Venda(data, valor);
-            e.adicionarVenda(v);
+            Empregado novo = e.copiar();
+            novo.adicionarVenda(v);
+            return estado().comEmpregado(novo);
         });
     }
 
@@ -600,14 +476,7 @@ public class Database {
                 throw new IllegalArgumentException("Identificacao do membro nao pode ser nula.");
             }
 
-            Empregado e = null;
-            for (Empregado emp : empregados.values()) {
-                if (emp.isSindicalizado() && membroId.equals(emp.getIdSindicato())) {
-                    e = emp;
-                    break;
-                }
-            }
-
+            Empregado e = estado().getMembro(membroId);
             if (e == null) {
                 throw new IllegalArgumentException("Membro nao existe.");
             }
@@ -615,7 +484,9 @@ public class Database {
             validarDataSimples(data);
 
             TaxaServico t = new TaxaServico(data, valor);
-            e.adicionarTaxa(t);
+            Empregado novo = e.copiar();
+            novo.adicionarTaxa(t);
+            return estado().comEmpregado(novo);
         });
     }
 
@@ -635,22 +506,14 @@ public class Database {
             throw new IllegalArgumentException("Empregado nao eh sindicalizado.");
         }
 
-        Date inicio = validarData(dataInicial, true);
-        Date fim = validarData(dataFinal, false);
+        long primeiro = validarData(dataInicial, true);
+        long limite = validarData(dataFinal, false);
 
-        if (inicio.after(fim)) {
+        if (primeiro > limite) {
             throw new IllegalArgumentException("Data inicial nao pode ser posterior aa data final.");
         }
 
-        double total = 0;
-        for (TaxaServico t : e.getTaxas()) {
-            Date d = validarData(t.getData(), false);
-            if (!d.before(inicio) && d.before(fim)) {
-                total += t.getValor();
-            }
-        }
-
-        return formatarValor(total);
+        return formatarTotal(e.serieDeTaxas().indice(), primeiro, limite);
     }
 
     public static String getVendasRealizadas(String empId, String dataInicial, String dataFinal) {
@@ -660,43 +523,244 @@ public class Database {
             throw new IllegalArgumentException("Empregado nao eh comissionado.");
         }
 
-        Date inicio = validarData(dataInicial, true);
-        Date fim = validarData(dataFinal, false);
+        long primeiro = validarData(dataInicial, true);
+        long limite = validarData(dataFinal, false);
 
-        if (inicio.after(fim)) {
+        if (primeiro > limite) {
             throw new IllegalArgumentException("Data inicial nao pode ser posterior aa data final.");
         }
 
-        double total = 0;
-        for (Venda v : e.getVendas()) {
-            Date data = validarData(v.getData(), false);
-            if (!data.before(inicio) && data.before(fim)) {
-                total += v.getValor();
+        return formatarTotal(e.serieDeVendas().indice(), primeiro, limite);
+    }
+
+    public static String totalFolha(String data) {
+        Versao versao = raiz;
+        ChaveFolha chave = new ChaveFolha(LocalDate.ofEpochDay(validarData(data, false)), versao.numero);
+        String total;
+        synchronized (folhasCalculadas) {
+            FolhaPagamento folha = folhasCalculadas.get(chave);
+            if (folha != null) {
+                return folha.totalFormatado();
+            }
+            total = totaisCalculados.get(chave);
+        }
+        if (total == null) {
+            total = FolhaPagamento.totalBruto(versao.estado, chave.data);
+            synchronized (folhasCalculadas) {
+                totaisCalculados.put(chave, total);
             }
         }
+        return total;
+    }
 
-        return formatarValor(total);
+    // calculada sobre a versao lida no inicio, fora de ESCRITA
+    public static void rodaFolha(String data, String saida) {
+        verificarSistemaAtivo();
+        FolhaPagamento folha = calcularFolha(raiz, data);
+        escreverRelatorio(new File(saida), folha);
+        // nao altera nada, mas o undo ainda conta a folha como um comando
+        registrarComandoSemAlteracao();
     }
 
-    public static String totalFolha(String data) {
-        FolhaPagamento folha = calcularFolha(data);
-        return formatarValor(folha.totalBruto());
+    // se um dia falhar, os relatorios dos dias anteriores ficam gravados, como nas chamadas uma a uma
+    public static void rodaFolhaPeriodo(String dataInicial, String dataFinal, String diretorioSaida) {
+        verificarSistemaAtivo();
+        long primeiro = validarData(dataInicial, true);
+        long ultimo = validarData(dataFinal, false);
+        if (primeiro > ultimo) {
+            throw new IllegalArgumentException("Data inicial nao pode ser posterior aa data final.");
+        }
+        if (diretorioSaida == null || diretorioSaida.trim().isEmpty()) {
+            throw new IllegalArgumentException("Diretorio de saida nao pode ser nulo.");
+        }
+        File diretorio = new File(diretorioSaida);
+        if (!diretorio.isDirectory() && !diretorio.mkdirs()) {
+            throw new RuntimeException("Erro ao escrever arquivo de folha.");
+        }
+
+        // todos os dias saem da mesma versao; cada um e calculado por inteiro, sem totais levados de um
+        // dia para o outro, porque os indices ja dao o total de qualquer periodo por somas acumuladas
+        Estado estado = raiz.estado;
+        List<LocalDate> dias = new ArrayList<>();
+        Collection<AgendaPagamento> agendas = estado.getAgendasDisponiveis();
+        for (long dia = primeiro; dia <= ultimo; dia++) {
+            LocalDate data = LocalDate.ofEpochDay(dia);
+            for (AgendaPagamento agenda : agendas) {
+                if (agenda.pagaEm(data)) {
+                    dias.add(data);
+                    break;
+                }
+            }
+        }
+
+        ForkJoinPool pool = reservarPoolDaFolha();
+        try {
+            escreverPeriodo(estado, dias, diretorio, pool);
+        } finally {
+            liberarPoolDaFolha(pool);
+        }
+        // como rodaFolha, conta como um comando para o undo
+        registrarComandoSemAlteracao();
     }
 
-    public static void rodaFolha(String data, String saida) {
-        executarComando(() -> {
-            FolhaPagamento folha = calcularFolha(data);
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(saida))) {
-                writer.write(folha.gerarRelatorio());
-            } catch (IOException e) {
-                throw new RuntimeException("Erro ao escrever arquivo de folha.", e);
+    private static void escreverPeriodo(Estado estado, List<LocalDate> dias, File diretorio, ForkJoinPool pool) {
+        if (pool == null) {
+            for (LocalDate dia : dias) {
+                escreverRelatorio(new File(diretorio, nomeDoRelatorio(dia)), new FolhaPagamento(estado, dia, null));
             }
-        });
+        } else {
+            // uma janela de paralelismo dias por vez, gravada antes da proxima, para nao guardar o periodo inteiro
+            int janela = pool.getParallelism();
+            FolhaPagamento[] folhas = new FolhaPagamento[janela];
+            RuntimeException[] erros = new RuntimeException[janela];
+            for (int inicio = 0; inicio < dias.size(); inicio += janela) {
+                int tamanho = Math.min(janela, dias.size() - inicio);
+                List<ForkJoinTask<?>> tarefas = new ArrayList<>(tamanho);
+                for (int i = 0; i < tamanho; i++) {
+                    int indice = i;
+                    LocalDate dia = dias.get(inicio + i);
+                    // as falhas ficam guardadas para que nenhuma tarefa seja cancelada
+                    tarefas.add(ForkJoinTask.adapt(() -> {
+                        try {
+                            folhas[indice] = new FolhaPagamento(estado, dia, null);
+                        } catch (RuntimeException e) {
+                            erros[indice] = e;
+                        }
+                    }));
+                }
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tarefas)));
+                for (int i = 0; i < tamanho; i++) {
+                    if (erros[i] != null) {
+                        throw erros[i];
+                    }
+                    escreverRelatorio(new File(diretorio, nomeDoRelatorio(dias.get(inicio + i))), folhas[i]);
+                    folhas[i] = null;
+                }
+            }
+        }
+    }
+
+    private static String nomeDoRelatorio(LocalDate dia) {
+        return "folha-" + dia.format(FolhaPagamento.CABECALHO_DATA) + ".txt";
+    }
+
+    private static void escreverRelatorio(File arquivo, FolhaPagamento folha) {
+        try (EscritorRelatorio out = new EscritorRelatorio(new FileOutputStream(arquivo).getChannel())) {
+            folha.escreverRelatorio(out);
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao escrever arquivo de folha.", e);
+        }
+    }
+
+    private static FolhaPagamento calcularFolha(Versao versao, String data) {
+        LocalDate referencia = LocalDate.ofEpochDay(validarData(data, false));
+        ChaveFolha chave = new ChaveFolha(referencia, versao.numero);
+        synchronized (folhasCalculadas) {
+            FolhaPagamento folha = folhasCalculadas.get(chave);
+            if (folha != null) {
+                return folha;
+            }
+        }
+        ForkJoinPool pool = reservarPoolDaFolha();
+        FolhaPagamento folha;
+        try {
+            folha = new FolhaPagamento(versao.estado, referencia, pool);
+        } finally {
+            liberarPoolDaFolha(pool);
+        }
+        synchronized (folhasCalculadas) {
+            folhasCalculadas.put(chave, folha);
+        }
+        return folha;
+    }
+
+    private static <V> Map<ChaveFolha, V> novoCacheDeFolhas() {
+        return new LinkedHashMap<ChaveFolha, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChaveFolha, V> maisAntiga) {
+                return size() > FOLHAS_EM_CACHE;
+            }
+        };
+    }
+
+    private static final class ChaveFolha {
+        private final LocalDate data;
+        private final long versao;
+
+        private ChaveFolha(LocalDate data, long versao) {
+            this.data = data;
+            this.versao = versao;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChaveFolha)) {
+                return false;
+            }
+            ChaveFolha outra = (ChaveFolha) o;
+            return versao == outra.versao && data.equals(outra.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * data.hashCode() + Long.hashCode(versao);
+        }
+    }
+
+    public static void setParalelismoFolha(String paralelismo) {
+        if (paralelismo == null || paralelismo.trim().isEmpty()) {
+            throw new IllegalArgumentException("Paralelismo nao pode ser nulo.");
+        }
+        int valor;
+        try {
+            valor = Integer.parseInt(paralelismo.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Paralelismo deve ser numerico.");
+        }
+        if (valor < 1) {
+            throw new IllegalArgumentException("Paralelismo deve ser positivo.");
+        }
+        if (valor > PARALELISMO_MAXIMO) {
+            throw new IllegalArgumentException("Paralelismo deve ser no maximo " + PARALELISMO_MAXIMO + ".");
+        }
+        paralelismoFolha = valor;
+    }
+
+    public static String getParalelismoFolha() {
+        return String.valueOf(paralelismoFolha);
+    }
+
+    // null quando a folha e calculada em sequencia; cada reserva precisa de um liberarPoolDaFolha
+    private static synchronized ForkJoinPool reservarPoolDaFolha() {
+        int paralelismo = paralelismoFolha;
+        if (poolFolha != null && poolFolha.getParallelism() != paralelismo) {
+            ForkJoinPool antigo = poolFolha;
+            poolFolha = null;
+            if (!folhasPorPool.containsKey(antigo)) {
+                antigo.shutdown();
+            }
+        }
+        if (paralelismo == 1) {
+            return null;
+        }
+        if (poolFolha == null) {
+            poolFolha = new ForkJoinPool(paralelismo);
+        }
+        folhasPorPool.merge(poolFolha, 1, Integer::sum);
+        return poolFolha;
     }
 
-    private static FolhaPagamento calcularFolha(String data) {
-        LocalDate referencia = toLocalDate(validarData(data, false));
-        return new FolhaPagamento(referencia);
+    private static synchronized void liberarPoolDaFolha(ForkJoinPool pool) {
+        if (pool == null) {
+            return;
+        }
+        int restantes = folhasPorPool.merge(pool, -1, Integer::sum);
+        if (restantes == 0) {
+            folhasPorPool.remove(pool);
+            if (pool != poolFolha) {
+                pool.shutdown();
+            }
+        }
     }
 
     private static double calcularHoras(String empId, String dataInicial, String dataFinal, boolean extras) {
@@ -706,28 +770,38 @@ public class Database {
             throw new IllegalArgumentException("Empregado nao eh horista.");
         }
 
-        Date inicio = validarData(dataInicial, true);
-        Date fim = validarData(dataFinal, false);
+        long primeiro = validarData(dataInicial, true);
+        long limite = validarData(dataFinal, false);
 
-        if (inicio.after(fim)) {
+        if (primeiro > limite) {
             throw new IllegalArgumentException("Data inicial nao pode ser posterior aa data final.");
         }
 
-        Map<String, Double> horasPorDia = new HashMap<>();
+        Serie<CartaoPonto> cartoes = e.serieDeCartoes();
+        IndiceDiario indice = cartoes.indice();
+        if (!indice.temDatasPorExtenso()) {
+            double[] horas = dividirHoras(indice, primeiro, limite, Datas::texto);
+            return extras ? horas[1] : horas[0];
+        }
+
+        // agrupa pelo texto da data: datas d/M/yyyy pelo dia, as demais pelo proprio texto
+        Map<Object, Double> horasPorDia = new LinkedHashMap<>();
 
-        for (CartaoPonto c : e.getCartoes()) {
-            Date data = validarData(c.getData(), false);
+        for (int i = 0; i < cartoes.size(); i++) {
+            int dia = cartoes.dia(i);
 
             // intervalo [início, fim)
-            if (!data.before(inicio) && data.before(fim)) {
-                horasPorDia.put(c.getData(), horasPorDia.getOrDefault(c.getData(), 0.0) + c.getHoras());
+            if (dia >= primeiro && dia < limite) {
+                String texto = cartoes.dataPorExtenso(i);
+                Object chave = texto != null ? texto : (Object) dia;
+                horasPorDia.merge(chave, cartoes.valor(i), Double::sum);
             }
         }
 
         double normais = 0;
         double extrasTotal = 0;
 
-        for (double horas : horasPorDia.values()) {
+        for (double horas : emOrdemDeSoma(horasPorDia, chave -> chave instanceof Integer dia ? Datas.texto(dia) : chave)) {
             if (horas > 8) {
                 normais += 8;
                 extrasTotal += horas - 8;
@@ -739,52 +813,105 @@ public class Database {
         return extras ? extrasTotal : normais;
     }
 
-    private static Date validarData(String data, boolean inicial) {
-        if (data == null || data.trim().isEmpty()) {
+    // dia desde 1970 da data d/M/yyyy
+    private static long validarData(String data, boolean inicial) {
+        long dia = Datas.ler(data);
+        if (dia == Datas.FORMATO_INVALIDO) {
             throw new IllegalArgumentException("Data invalida.");
         }
+        if (dia == Datas.VALOR_INVALIDO) {
+            if (inicial) throw new IllegalArgumentException("Data inicial invalida.");
+            else throw new IllegalArgumentException("Data final invalida.");
+        }
+        return dia;
+    }
 
-        String[] partes = data.split("/");
-        if (partes.length != 3) {
+    private static void validarDataSimples(String data) {
+        if (!Datas.valida(Datas.ler(data))) {
             throw new IllegalArgumentException("Data invalida.");
         }
+    }
 
-        try {
-            int dia = Integer.parseInt(partes[0]);
-            int mes = Integer.parseInt(partes[1]);
-            int ano = Integer.parseInt(partes[2]);
+    // Horas normais e extras dos cartoes em [de, ate), somadas na ordem em que o mapa antigo somava
+    private static double[] dividirHoras(IndiceDiario indice, long de, long ate, IntFunction<?> chaveOriginal) {
+        double[] acumuladas = indice.horasExatas(de, ate);
+        if (acumuladas != null) {
+            return acumuladas;
+        }
+        int inicio = indice.inicio(de);
+        int fim = indice.inicio(ate);
+        int[] dias = new int[fim - inicio];
+        double[] totais = new double[fim - inicio];
+        // posicao do primeiro cartao do dia nos 32 bits altos, indice do dia nos baixos
+        long[] ordem = new long[fim - inicio];
+        int quantos = 0;
+        boolean exatas = true;
+        for (int i = inicio; i < fim; quantos++) {
+            int dia = indice.dia(i);
+            ordem[quantos] = ((long) indice.posicao(i) << 32) | quantos;
+            double total = indice.valor(i++);
+            while (i < fim && indice.dia(i) == dia) {
+                total += indice.valor(i++);
+            }
+            dias[quantos] = dia;
+            totais[quantos] = total;
+            exatas &= somaExata(total);
+        }
 
-            if (dia <= 0) {
-                if (inicial) throw new IllegalArgumentException("Data inicial invalida.");
-                else throw new IllegalArgumentException("Data final invalida.");
+        Collection<Double> horasPorDia;
+        if (exatas) {
+            horasPorDia = new ArrayList<>(quantos);
+            for (int i = 0; i < quantos; i++) {
+                horasPorDia.add(totais[i]);
             }
-            if (mes <= 0 || mes > 12) {
-                throw new IllegalArgumentException("Data invalida.");
+        } else {
+            Arrays.sort(ordem, 0, quantos);
+            Map<Integer, Double> porPrimeiroCartao = new LinkedHashMap<>();
+            for (int i = 0; i < quantos; i++) {
+                int d = (int) ordem[i];
+                porPrimeiroCartao.put(dias[d], totais[d]);
             }
+            horasPorDia = emOrdemDeSoma(porPrimeiroCartao, chaveOriginal::apply);
+        }
 
-            SimpleDateFormat sdf = new SimpleDateFormat("d/M/yyyy");
-            sdf.setLenient(false);
-            return sdf.parse(data);
+        double normais = 0;
+        double extras = 0;
+        for (double horas : horasPorDia) {
+            if (horas > 8) {
+                normais += 8;
+                extras += horas - 8;
+            } else {
+                normais += horas;
+            }
+        }
+        return new double[]{normais, extras};
+    }
 
-        } catch (NumberFormatException e) {
-            if (inicial) throw new IllegalArgumentException("Data inicial invalida.");
-            else throw new IllegalArgumentException("Data final invalida.");
-        } catch (ParseException e) {
-            if (inicial) throw new IllegalArgumentException("Data inicial invalida.");
-            else throw new IllegalArgumentException("Data final invalida.");
+    // ordem em que um HashMap com as chaves originais somava; so importa se alguma soma nao e exata
+    private static <K> Collection<Double> emOrdemDeSoma(Map<K, Double> horasPorDia, Function<? super K, ?> chaveOriginal) {
+        if (somasExatas(horasPorDia.values())) {
+            return horasPorDia.values();
         }
+        Map<Object, Double> original = new HashMap<>();
+        for (Map.Entry<K, Double> dia : horasPorDia.entrySet()) {
+            original.put(chaveOriginal.apply(dia.getKey()), dia.getValue());
+        }
+        return original.values();
     }
 
-    private static Date validarDataSimples(String data) {
-        try {
-            return validarData(data, false);
-        } catch (IllegalArgumentException e) {
-            String mensagem = e.getMessage();
-            if ("Data final invalida.".equals(mensagem) || "Data inicial invalida.".equals(mensagem)) {
-                throw new IllegalArgumentException("Data invalida.");
+    // multiplos de 1/1024 pequenos somam sem arredondar, em qualquer ordem
+    private static boolean somasExatas(Collection<Double> horas) {
+        for (double h : horas) {
+            if (!somaExata(h)) {
+                return false;
             }
-            throw e;
         }
+        return true;
+    }
+
+    private static boolean somaExata(double horas) {
+        double escalado = horas * 1024;
+        return Math.abs(horas) < 1 << 30 && escalado == Math.rint(escalado);
     }
 
     private static String formatarNumero(double valor) {
@@ -796,324 +923,193 @@ public class Database {
         }
     }
 
-    private static String formatarValor(double valor) {
-        return String.format("%.2f", valor).replace('.', ',');
-    }
-
-
-    private static LocalDate toLocalDate(Date data) {
-        return data.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-    }
-
-    private static LocalDate parseData(String data) {
-        return toLocalDate(validarData(data, false));
-    }
-
-    private static String formatarValor(BigDecimal valor) {
-        return String.format("%.2f", valor.doubleValue()).replace('.', ',');
-    }
-
-    private static BigDecimal truncar(BigDecimal valor) {
-        return valor.setScale(2, RoundingMode.DOWN);
-    }
-
-    private static DayOfWeek converterDiaSemana(int diaSemana) {
-        switch (diaSemana) {
-            case 1:
-                return DayOfWeek.MONDAY;
-            case 2:
-                return DayOfWeek.TUESDAY;
-            case 3:
-                return DayOfWeek.WEDNESDAY;
-            case 4:
-                return DayOfWeek.THURSDAY;
-            case 5:
-                return DayOfWeek.FRIDAY;
-            case 6:
-                return DayOfWeek.SATURDAY;
-            case 7:
-                return DayOfWeek.SUNDAY;
-            default:
-                return null;
+    // Total dos lancamentos com dia em [de, ate) como formatarValor o daria sobre a soma em double
+    private static String formatarTotal(IndiceDiario indice, long de, long ate) {
+        long centavos = indice.centavosExatos(de, ate);
+        if (centavos != IndiceDiario.SEM_TOTAL) {
+            return Dinheiro.formatar(centavos);
         }
+        return formatarValor(indice.somar(de, ate));
     }
 
-    private static LocalDate ultimoDiaUtilDoMes(LocalDate referencia) {
-        LocalDate ultimo = referencia.withDayOfMonth(referencia.lengthOfMonth());
-        while (ultimo.getDayOfWeek() == DayOfWeek.SATURDAY || ultimo.getDayOfWeek() == DayOfWeek.SUNDAY) {
-            ultimo = ultimo.minusDays(1);
-        }
-        return ultimo;
+    private static String formatarValor(double valor) {
+        return String.format("%.2f", valor).replace('.', ',');
     }
 
+
     private static class FolhaPagamento {
         private static final DateTimeFormatter CABECALHO_DATA = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+        private final Estado estado;
         private final LocalDate data;
-        private final List<PagamentoHorista> horistas = new ArrayList<>();
-        private final List<PagamentoAssalariado> assalariados = new ArrayList<>();
-        private final List<PagamentoComissionado> comissionados = new ArrayList<>();
-        private BigDecimal totalHoristaBruto = BigDecimal.ZERO;
-        private BigDecimal totalHoristaDescontos = BigDecimal.ZERO;
-        private BigDecimal totalHoristaLiquido = BigDecimal.ZERO;
-        private int totalHoras = 0;
-        private int totalExtras = 0;
-        private BigDecimal totalAssalariadoBruto = BigDecimal.ZERO;
-        private BigDecimal totalAssalariadoDescontos = BigDecimal.ZERO;
-        private BigDecimal totalAssalariadoLiquido = BigDecimal.ZERO;
-        private BigDecimal totalComFixo = BigDecimal.ZERO;
-        private BigDecimal totalComVendas = BigDecimal.ZERO;
-        private BigDecimal totalComComissao = BigDecimal.ZERO;
-        private BigDecimal totalComBruto = BigDecimal.ZERO;
-        private BigDecimal totalComDescontos = BigDecimal.ZERO;
-        private BigDecimal totalComLiquido = BigDecimal.ZERO;
-
-        private FolhaPagamento(LocalDate data) {
+        private Secao<PagamentoHorista> horistas;
+        private Secao<PagamentoAssalariado> assalariados;
+        private Secao<PagamentoComissionado> comissionados;
+        private long total;
+        // so quando algum valor nao coube em centavos num long; entao as secoes acima ficam vazias
+        private final FolhaExata exata;
+
+        private FolhaPagamento(Estado estado, LocalDate data, ForkJoinPool pool) {
+            this.estado = estado;
             this.data = data;
-            processarHoristas();
-            processarAssalariados();
-            processarComissionados();
-        }
-
-        private void processarHoristas() {
-            List<Empregado> empregadosHoristas = new ArrayList<>();
-            for (Empregado e : empregados.values()) {
-                if ("horista".equals(e.getTipo())) {
-                    empregadosHoristas.add(e);
-                }
+            FolhaExata refeita = null;
+            try {
+                horistas = calcularSecao(pool, estado.getEmpregadosDoTipo("horista", this::pagaHoje),
+                        this::calcularHorista);
+                assalariados = calcularSecao(pool, estado.getEmpregadosDoTipo("assalariado", this::pagaHoje),
+                        this::calcularAssalariado);
+                comissionados = calcularSecao(pool, estado.getEmpregadosDoTipo("comissionado", this::pagaHoje),
+                        this::calcularComissionado);
+                total = Dinheiro.somar(Dinheiro.somar(horistas.totais.bruto, assalariados.totais.bruto),
+                        comissionados.totais.bruto);
+            } catch (ArithmeticException e) {
+                horistas = null;
+                assalariados = null;
+                comissionados = null;
+                refeita = new FolhaExata();
+            }
+            exata = refeita;
+        }
+
+        String totalFormatado() {
+            return exata != null ? Dinheiro.formatar(exata.total) : Dinheiro.formatar(total);
+        }
+
+        // se algum calculo falhar, lanca a excecao que o calculo em sequencia lancaria
+        private static <R extends Pagamento> Secao<R> calcularSecao(ForkJoinPool pool, List<Empregado> empregados,
+                                                                    Function<Empregado, R> calculo) {
+            Secao<R> secao = pool == null
+                    ? Secao.calcular(empregados, 0, empregados.size(), calculo)
+                    : pool.invoke(new CalculoSecao<>(empregados, 0, empregados.size(), calculo));
+            if (secao.erro != null) {
+                throw secao.erro;
+            }
+            return secao;
+        }
+
+        // null se o empregado fica fora da folha
+        private PagamentoHorista calcularHorista(Empregado e) {
+            AgendaPagamento agenda = e.getAgenda();
+            if (agenda == null) {
+                return null;
             }
 
-            empregadosHoristas.sort(Comparator.comparing(Empregado::getNome, String.CASE_INSENSITIVE_ORDER));
-
-            for (Empregado e : empregadosHoristas) {
-                if (!devePagarHoje(e, data)) {
-                    continue;
-                }
+            long primeiro = inicioDoPeriodo(agenda, data);
+            long ultimo = data.toEpochDay();
+            double[] horas = dividirHoras(e.serieDeCartoes().indice(), primeiro, ultimo + 1, LocalDate::ofEpochDay);
+            double horasNormais = horas[0];
+            double horasExtras = horas[1];
 
-                LocalDate inicioPeriodo = obterInicioPeriodo(e, data);
-                if (inicioPeriodo == null) {
-                    continue;
-                }
+            long bruto = brutoHorista(e.getSalario(), horasNormais, horasExtras);
+            long descontos = 0;
+            long liquido = bruto;
 
-                Map<LocalDate, Double> horasPorDia = new HashMap<>();
-                for (CartaoPonto cartao : e.getCartoes()) {
-                    LocalDate diaCartao = parseData(cartao.getData());
-                    if (!diaCartao.isBefore(inicioPeriodo) && !diaCartao.isAfter(data)) {
-                        horasPorDia.put(diaCartao, horasPorDia.getOrDefault(diaCartao, 0.0) + cartao.getHoras());
-                    }
+            if (e.isSindicalizado() && bruto > 0) {
+                long taxas = calcularTaxasSindicaisHorista(e, data);
+                descontos = Dinheiro.somar(descontos, taxas);
+                long extrasServico = calcularTaxasServico(e, ajustarUltimoPagamento(obterUltimoPagamentoHorista(e, data)), data);
+                descontos = Dinheiro.somar(descontos, extrasServico);
+                if (descontos > bruto) {
+                    descontos = bruto;
                 }
+                liquido = bruto - descontos;
+            }
 
-                double horasNormais = 0;
-                double horasExtras = 0;
-                for (double horas : horasPorDia.values()) {
-                    if (horas > 8) {
-                        horasNormais += 8;
-                        horasExtras += horas - 8;
-                    } else {
-                        horasNormais += horas;
-                    }
-                }
+            return new PagamentoHorista(e, (int) Math.round(horasNormais), (int) Math.round(horasExtras), bruto, descontos, liquido);
+        }
 
-                BigDecimal salarioHora = BigDecimal.valueOf(e.getSalario());
-                BigDecimal normal = truncar(salarioHora.multiply(BigDecimal.valueOf(horasNormais)));
-                BigDecimal adicional = BigDecimal.ZERO;
-                if (horasExtras > 0) {
-                    BigDecimal fatorHoraExtra = salarioHora.multiply(BigDecimal.valueOf(3)).divide(BigDecimal.valueOf(2), 10, RoundingMode.HALF_UP);
-                    adicional = truncar(fatorHoraExtra.multiply(BigDecimal.valueOf(horasExtras)));
-                }
+        private PagamentoAssalariado calcularAssalariado(Empregado e) {
+            long bruto = calcularPagamentoAssalariado(e);
+            long descontos = 0;
 
-                BigDecimal bruto = normal.add(adicional);
-                BigDecimal descontos = BigDecimal.ZERO;
-                BigDecimal liquido = bruto;
-
-                if (e.isSindicalizado() && bruto.compareTo(BigDecimal.ZERO) > 0) {
-                    BigDecimal taxas = calcularTaxasSindicaisHorista(e, data);
-                    descontos = descontos.add(taxas);
-                    BigDecimal extrasServico = calcularTaxasServico(e, ajustarUltimoPagamento(obterUltimoPagamentoHorista(e, data)), data);
-                    descontos = descontos.add(extrasServico);
-                    if (descontos.compareTo(bruto) > 0) {
-                        descontos = bruto;
-                    }
-                    liquido = bruto.subtract(descontos);
+            if (e.isSindicalizado() && bruto > 0) {
+                long taxas = calcularTaxasSindicaisAssalariado(e, data);
+                descontos = Dinheiro.somar(descontos, taxas);
+                long extrasServico = calcularTaxasServico(e, ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, data)), data);
+                descontos = Dinheiro.somar(descontos, extrasServico);
+                if (descontos > bruto) {
+                    descontos = bruto;
                 }
-
-                PagamentoHorista registro = new PagamentoHorista(e, (int) Math.round(horasNormais), (int) Math.round(horasExtras), bruto, descontos, liquido);
-                horistas.add(registro);
-
-                totalHoras += registro.horasNormais;
-                totalExtras += registro.horasExtras;
-                totalHoristaBruto = totalHoristaBruto.add(bruto);
-                totalHoristaDescontos = totalHoristaDescontos.add(descontos);
-                totalHoristaLiquido = totalHoristaLiquido.add(liquido);
             }
+
+            long liquido = bruto - descontos;
+            return new PagamentoAssalariado(e, bruto, descontos, liquido);
         }
 
-        private void processarAssalariados() {
-            List<Empregado> empregadosAssalariados = new ArrayList<>();
-            for (Empregado e : empregados.values()) {
-                if ("assalariado".equals(e.getTipo())) {
-                    empregadosAssalariados.add(e);
-                }
+        // null se o empregado fica fora da folha
+        private PagamentoComissionado calcularComissionado(Empregado e) {
+            AgendaPagamento agenda = e.getAgenda();
+            if (agenda == null) {
+                return null;
             }
 
-            empregadosAssalariados.sort(Comparator.comparing(Empregado::getNome, String.CASE_INSENSITIVE_ORDER));
+            LocalDate ultimoPagamento = ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, data));
 
-            for (Empregado e : empregadosAssalariados) {
-                if (!devePagarHoje(e, data)) {
-                    continue;
-                }
+            long fixo = calcularSalarioFixoComissionado(e);
+            long vendas = totalTruncado(e.serieDeVendas().indice(), inicioDoPeriodo(agenda, data), data.toEpochDay() + 1);
+            long comissao = calcularComissao(e, vendas);
 
-                BigDecimal bruto = calcularPagamentoAssalariado(e);
-                BigDecimal descontos = BigDecimal.ZERO;
+            long bruto = Dinheiro.somar(fixo, comissao);
+            long descontos = 0;
 
-                if (e.isSindicalizado() && bruto.compareTo(BigDecimal.ZERO) > 0) {
-                    BigDecimal taxas = calcularTaxasSindicaisAssalariado(e, data);
-                    descontos = descontos.add(taxas);
-                    BigDecimal extrasServico = calcularTaxasServico(e, ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, data)), data);
-                    descontos = descontos.add(extrasServico);
-                    if (descontos.compareTo(bruto) > 0) {
-                        descontos = bruto;
-                    }
+            if (e.isSindicalizado()) {
+                long taxas = calcularTaxasSindicaisComissionado(e, data);
+                descontos = Dinheiro.somar(descontos, taxas);
+                long extrasServico = calcularTaxasServico(e, ultimoPagamento, data);
+                descontos = Dinheiro.somar(descontos, extrasServico);
+                if (descontos > bruto) {
+                    descontos = bruto;
                 }
+            }
+
+            long liquido = bruto - descontos;
+            return new PagamentoComissionado(e, fixo, vendas, comissao, bruto, descontos, liquido);
+        }
 
-                BigDecimal liquido = bruto.subtract(descontos);
-                PagamentoAssalariado registro = new PagamentoAssalariado(e, bruto, descontos, liquido);
-                assalariados.add(registro);
+        private boolean pagaHoje(String agenda) {
+            AgendaPagamento info = AgendaPagamento.interpretar(agenda);
+            return info != null && info.pagaEm(data);
+        }
 
-                totalAssalariadoBruto = totalAssalariadoBruto.add(bruto);
-                totalAssalariadoDescontos = totalAssalariadoDescontos.add(descontos);
-                totalAssalariadoLiquido = totalAssalariadoLiquido.add(liquido);
+        // dia (desde 1970) em que comeca o periodo pago em 'dia'
+        private static long inicioDoPeriodo(AgendaPagamento info, LocalDate dia) {
+            if (info.isSemanal()) {
+                int dias = info.getFrequenciaSemanas() * 7 - 1;
+                return dia.toEpochDay() - dias;
             }
+            return dia.toEpochDay() - dia.getDayOfMonth() + 1;
         }
 
-        private void processarComissionados() {
-            List<Empregado> empregadosComissionados = new ArrayList<>();
-            for (Empregado e : empregados.values()) {
-                if ("comissionado".equals(e.getTipo())) {
-                    empregadosComissionados.add(e);
-                }
+        private static long brutoHorista(double salario, double horasNormais, double horasExtras) {
+            long normal = Dinheiro.multiplicar(salario, horasNormais);
+            long adicional = 0;
+            if (horasExtras > 0) {
+                adicional = Dinheiro.multiplicar(salario, 3, 2, horasExtras);
             }
+            return Dinheiro.somar(normal, adicional);
+        }
 
-            empregadosComissionados.sort(Comparator.comparing(Empregado::getNome, String.CASE_INSENSITIVE_ORDER));
+        private static long calcularComissao(Empregado e, long vendas) {
+            if (e.getComissao() == null) {
+                return 0;
+            }
+            return Dinheiro.multiplicar(vendas, e.getComissao());
+        }
 
-            for (Empregado e : empregadosComissionados) {
-                if (!devePagarHoje(e, data)) {
-                    continue;
-                }
+        private static long calcularPagamentoAssalariado(Empregado e) {
+            AgendaPagamento info = e.getAgenda();
+            if (info == null) {
+                return 0;
+            }
 
-                LocalDate inicioPeriodo = obterInicioPeriodo(e, data);
-                if (inicioPeriodo == null) {
-                    continue;
-                }
+            if (info.isSemanal()) {
+                return calcularValorSemanas(e.getSalario(), info.getFrequenciaSemanas());
+            }
 
-                LocalDate ultimoPagamento = ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, data));
+            return Dinheiro.truncar(e.getSalario());
+        }
 
-                BigDecimal fixo = calcularSalarioFixoComissionado(e);
-                BigDecimal vendas = BigDecimal.ZERO;
-                for (Venda v : e.getVendas()) {
-                    LocalDate dataVenda = parseData(v.getData());
-                    if (!dataVenda.isBefore(inicioPeriodo) && !dataVenda.isAfter(data)) {
-                        vendas = vendas.add(truncar(BigDecimal.valueOf(v.getValor())));
-                    }
-                }
-
-                BigDecimal comissao = BigDecimal.ZERO;
-                if (e.getComissao() != null) {
-                    comissao = truncar(vendas.multiply(BigDecimal.valueOf(e.getComissao())));
-                }
-
-                BigDecimal bruto = fixo.add(comissao);
-                BigDecimal descontos = BigDecimal.ZERO;
-
-                if (e.isSindicalizado()) {
-                    BigDecimal taxas = calcularTaxasSindicaisComissionado(e, data);
-                    descontos = descontos.add(taxas);
-                    BigDecimal extrasServico = calcularTaxasServico(e, ultimoPagamento, data);
-                    descontos = descontos.add(extrasServico);
-                    if (descontos.compareTo(bruto) > 0) {
-                        descontos = bruto;
-                    }
-                }
-
-                BigDecimal liquido = bruto.subtract(descontos);
-
-                PagamentoComissionado registro = new PagamentoComissionado(e, fixo, vendas, comissao, bruto, descontos, liquido);
-                comissionados.add(registro);
-
-                totalComFixo = totalComFixo.add(fixo);
-                totalComVendas = totalComVendas.add(vendas);
-                totalComComissao = totalComComissao.add(comissao);
-                totalComBruto = totalComBruto.add(bruto);
-                totalComDescontos = totalComDescontos.add(descontos);
-                totalComLiquido = totalComLiquido.add(liquido);
-            }
-        }
-
-        private boolean devePagarHoje(Empregado e, LocalDate dia) {
-            return devePagarHoje(interpretarAgenda(e.getAgendaPagamento()), dia);
-        }
-
-        private boolean devePagarHoje(AgendaInfo info, LocalDate dia) {
-            if (info == null) {
-                return false;
-            }
-
-            if (info.tipo == TipoAgenda.SEMANAL) {
-                DayOfWeek esperado = converterDiaSemana(info.diaSemana);
-                if (esperado == null || dia.getDayOfWeek() != esperado) {
-                    return false;
-                }
-                long semanas = ChronoUnit.WEEKS.between(LocalDate.of(2005, 1, 1), dia);
-                long ajuste = info.frequenciaSemanas - 1L;
-                if (semanas < ajuste) {
-                    return false;
-                }
-                return info.frequenciaSemanas == 1
-                        || semanas % info.frequenciaSemanas == ajuste;
-            }
-
-            if (info.tipo == TipoAgenda.MENSAL) {
-                if (info.ultimoDiaUtil) {
-                    return dia.equals(ultimoDiaUtilDoMes(dia));
-                }
-                return dia.getDayOfMonth() == info.diaMes;
-            }
-
-            return false;
-        }
-
-        private LocalDate obterInicioPeriodo(Empregado e, LocalDate dia) {
-            AgendaInfo info = interpretarAgenda(e.getAgendaPagamento());
-            if (info == null) {
-                return null;
-            }
-            if (info.tipo == TipoAgenda.SEMANAL) {
-                int dias = info.frequenciaSemanas * 7 - 1;
-                return dia.minusDays(dias);
-            }
-            if (info.tipo == TipoAgenda.MENSAL) {
-                return dia.withDayOfMonth(1);
-            }
-            return null;
-        }
-
-        private BigDecimal calcularPagamentoAssalariado(Empregado e) {
-            AgendaInfo info = interpretarAgenda(e.getAgendaPagamento());
-            if (info == null) {
-                return BigDecimal.ZERO;
-            }
-
-            if (info.tipo == TipoAgenda.SEMANAL) {
-                return calcularValorSemanas(e.getSalario(), info.frequenciaSemanas);
-            }
-
-            return truncar(BigDecimal.valueOf(e.getSalario()));
-        }
-
-        private BigDecimal calcularValorSemanas(double salarioMensal, int frequencia) {
-            BigDecimal anual = BigDecimal.valueOf(salarioMensal).multiply(BigDecimal.valueOf(12));
-            BigDecimal total = anual.multiply(BigDecimal.valueOf(frequencia));
-            BigDecimal porPeriodo = total.divide(BigDecimal.valueOf(52), 10, RoundingMode.HALF_UP);
-            return truncar(porPeriodo);
+        private static long calcularValorSemanas(double salarioMensal, int frequencia) {
+            return Dinheiro.dividir(salarioMensal, 12L * frequencia, 52);
         }
 
         private LocalDate ajustarUltimoPagamento(LocalDate ultimo) {
@@ -1128,359 +1124,727 @@ public class Database {
         }
 
         private LocalDate obterUltimoPagamentoPorAgenda(Empregado e, LocalDate pagamento) {
-            AgendaInfo info = interpretarAgenda(e.getAgendaPagamento());
+            AgendaPagamento info = e.getAgenda();
             if (info == null) {
                 return null;
             }
-            if (info.tipo == TipoAgenda.SEMANAL) {
-                return pagamento.minusWeeks(info.frequenciaSemanas);
+            if (info.isSemanal()) {
+                return pagamento.minusWeeks(info.getFrequenciaSemanas());
             }
-            if (info.tipo == TipoAgenda.MENSAL) {
-                LocalDate anterior = pagamento.minusMonths(1);
-                if (info.ultimoDiaUtil) {
-                    return ultimoDiaUtilDoMes(anterior);
-                }
-                int dia = info.diaMes;
-                return anterior.withDayOfMonth(dia);
+            LocalDate anterior = pagamento.minusMonths(1);
+            if (info.isUltimoDiaUtil()) {
+                return AgendaPagamento.ultimoDiaUtilDoMes(anterior);
             }
-            return null;
+            return anterior.withDayOfMonth(info.getDiaMes());
         }
 
-        private LocalDate determinarDiaPagamentoHorista(String agenda, LocalDate dataCartao) {
-            AgendaInfo info = interpretarAgenda(agenda);
+        private LocalDate determinarDiaPagamentoHorista(AgendaPagamento info, LocalDate dataCartao) {
             if (info == null) {
                 return null;
             }
-            if (info.tipo == TipoAgenda.SEMANAL) {
+            if (info.isSemanal()) {
                 LocalDate dia = dataCartao;
-                int limite = info.frequenciaSemanas * 7;
+                int limite = info.getFrequenciaSemanas() * 7;
                 for (int i = 0; i <= limite; i++) {
                     LocalDate candidato = dia.plusDays(i);
-                    if (devePagarHoje(info, candidato)) {
+                    if (info.pagaEm(candidato)) {
                         return candidato;
                     }
                 }
                 return null;
             }
-            if (info.tipo == TipoAgenda.MENSAL) {
-                LocalDate candidato;
-                if (info.ultimoDiaUtil) {
-                    candidato = ultimoDiaUtilDoMes(dataCartao);
-                    if (candidato.isBefore(dataCartao)) {
-                        candidato = ultimoDiaUtilDoMes(dataCartao.plusMonths(1));
-                    }
-                } else {
-                    int diaMes = info.diaMes;
-                    candidato = dataCartao.withDayOfMonth(diaMes);
-                    if (candidato.isBefore(dataCartao)) {
-                        candidato = dataCartao.plusMonths(1).withDayOfMonth(diaMes);
-                    }
+            LocalDate candidato;
+            if (info.isUltimoDiaUtil()) {
+                candidato = AgendaPagamento.ultimoDiaUtilDoMes(dataCartao);
+                if (candidato.isBefore(dataCartao)) {
+                    candidato = AgendaPagamento.ultimoDiaUtilDoMes(dataCartao.plusMonths(1));
+                }
+            } else {
+                int diaMes = info.getDiaMes();
+                candidato = dataCartao.withDayOfMonth(diaMes);
+                if (candidato.isBefore(dataCartao)) {
+                    candidato = dataCartao.plusMonths(1).withDayOfMonth(diaMes);
                 }
-                return candidato;
             }
-            return null;
+            return candidato;
         }
 
-        private BigDecimal calcularTaxasSindicaisHorista(Empregado e, LocalDate pagamento) {
+        private long calcularTaxasSindicaisHorista(Empregado e, LocalDate pagamento) {
+            long dias = diasDeTaxaSindicalHorista(e, pagamento);
+            return dias < 0 ? 0 : Dinheiro.multiplicar(e.getTaxaSindical(), dias);
+        }
+
+        private long calcularTaxasSindicaisAssalariado(Empregado e, LocalDate pagamento) {
+            return Dinheiro.multiplicar(e.getTaxaSindical(), diasDeTaxaSindicalPorAgenda(e, pagamento));
+        }
+
+        private long calcularTaxasSindicaisComissionado(Empregado e, LocalDate pagamento) {
+            return Dinheiro.multiplicar(e.getTaxaSindical(), diasDeTaxaSindicalPorAgenda(e, pagamento));
+        }
+
+        // dias cobrados desde o ultimo pagamento, ou desde o primeiro cartao; -1 se nao ha cartoes
+        private long diasDeTaxaSindicalHorista(Empregado e, LocalDate pagamento) {
             LocalDate ultimo = obterUltimoPagamentoHorista(e, pagamento);
             if (ultimo == null) {
                 LocalDate inicio = obterPrimeiroCartao(e);
                 if (inicio == null) {
-                    return BigDecimal.ZERO;
+                    return -1;
                 }
-                long dias = ChronoUnit.DAYS.between(inicio.minusDays(1), pagamento);
-                return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
-            }
-            long dias = ChronoUnit.DAYS.between(ultimo, pagamento);
-            return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
-        }
-
-        private BigDecimal calcularTaxasSindicaisAssalariado(Empregado e, LocalDate pagamento) {
-            LocalDate ultimo = ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, pagamento));
-            LocalDate inicio = LocalDate.of(2005, 1, 1);
-            if (ultimo == null) {
-                long dias = ChronoUnit.DAYS.between(inicio.minusDays(1), pagamento);
-                return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
+                return ChronoUnit.DAYS.between(inicio.minusDays(1), pagamento);
             }
-            long dias = ChronoUnit.DAYS.between(ultimo, pagamento);
-            return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
+            return ChronoUnit.DAYS.between(ultimo, pagamento);
         }
 
-        private BigDecimal calcularTaxasSindicaisComissionado(Empregado e, LocalDate pagamento) {
+        private long diasDeTaxaSindicalPorAgenda(Empregado e, LocalDate pagamento) {
             LocalDate ultimo = ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, pagamento));
             LocalDate inicio = LocalDate.of(2005, 1, 1);
             if (ultimo == null) {
-                long dias = ChronoUnit.DAYS.between(inicio.minusDays(1), pagamento);
-                return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
+                return ChronoUnit.DAYS.between(inicio.minusDays(1), pagamento);
             }
-            long dias = ChronoUnit.DAYS.between(ultimo, pagamento);
-            return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
+            return ChronoUnit.DAYS.between(ultimo, pagamento);
         }
 
-        private BigDecimal calcularTaxasServico(Empregado e, LocalDate ultimoPagamento, LocalDate pagamento) {
+        private long calcularTaxasServico(Empregado e, LocalDate ultimoPagamento, LocalDate pagamento) {
             if (!e.isSindicalizado()) {
-                return BigDecimal.ZERO;
+                return 0;
             }
 
-            BigDecimal total = BigDecimal.ZERO;
-            for (TaxaServico taxa : e.getTaxas()) {
-                LocalDate dataTaxa = parseData(taxa.getData());
-                boolean aposUltimo = ultimoPagamento == null || dataTaxa.isAfter(ultimoPagamento);
-                if (aposUltimo && !dataTaxa.isAfter(pagamento)) {
-                    total = total.add(truncar(BigDecimal.valueOf(taxa.getValor())));
-                }
-            }
-            return total;
+            long depoisDe = ultimoPagamento == null ? Long.MIN_VALUE : ultimoPagamento.toEpochDay();
+            long ate = pagamento.toEpochDay();
+            return totalTruncado(e.serieDeTaxas().indice(), depoisDe + 1, ate + 1);
         }
 
+        // o dia de pagamento cresce com a data do cartao, entao basta o do ultimo cartao antes do ultimo pagamento
         private LocalDate obterUltimoPagamentoHorista(Empregado e, LocalDate pagamento) {
-            Set<LocalDate> diasPagamento = new HashSet<>();
-            for (CartaoPonto cartao : e.getCartoes()) {
-                LocalDate dataCartao = parseData(cartao.getData());
-                LocalDate diaPagamento = determinarDiaPagamentoHorista(e.getAgendaPagamento(), dataCartao);
-                if (diaPagamento != null && !diaPagamento.isAfter(pagamento)) {
-                    diasPagamento.add(diaPagamento);
-                }
+            AgendaPagamento agenda = e.getAgenda();
+            if (agenda == null) {
+                return null;
+            }
+            LocalDate anterior = agenda.ultimoPagamentoAntes(pagamento);
+            if (anterior == null) {
+                return null;
             }
+            IndiceDiario cartoes = e.serieDeCartoes().indice();
+            int ultimo = cartoes.inicio(anterior.toEpochDay() + 1) - 1;
+            if (ultimo < 0) {
+                return null;
+            }
+            return determinarDiaPagamentoHorista(agenda, LocalDate.ofEpochDay(cartoes.dia(ultimo)));
+        }
 
-            LocalDate ultimo = null;
-            for (LocalDate dia : diasPagamento) {
-                if (dia.isBefore(pagamento)) {
-                    if (ultimo == null || dia.isAfter(ultimo)) {
-                        ultimo = dia;
-                    }
-                }
+        // centavos dos lancamentos com dia em [de, ate), cada valor truncado
+        private static long totalTruncado(IndiceDiario indice, long de, long ate) {
+            long total = indice.centavos(de, ate);
+            if (total != IndiceDiario.SEM_TOTAL) {
+                return total;
             }
-            return ultimo;
+            total = 0;
+            int fim = indice.inicio(ate);
+            for (int i = indice.inicio(de); i < fim; i++) {
+                total = Dinheiro.somar(total, Dinheiro.truncar(indice.valor(i)));
+            }
+            return total;
         }
 
         private LocalDate obterPrimeiroCartao(Empregado e) {
-            LocalDate primeiro = null;
-            for (CartaoPonto cartao : e.getCartoes()) {
-                LocalDate dataCartao = parseData(cartao.getData());
-                if (primeiro == null || dataCartao.isBefore(primeiro)) {
-                    primeiro = dataCartao;
-                }
+            IndiceDiario cartoes = e.serieDeCartoes().indice();
+            if (cartoes.tamanho() == 0) {
+                return null;
             }
-            return primeiro;
+            return LocalDate.ofEpochDay(cartoes.dia(0));
         }
 
-        private BigDecimal calcularSalarioFixoComissionado(Empregado e) {
+        private static long calcularSalarioFixoComissionado(Empregado e) {
             return calcularPagamentoAssalariado(e);
         }
 
-        private BigDecimal totalBruto() {
-            return totalHoristaBruto.add(totalAssalariadoBruto).add(totalComBruto);
-        }
-
-        private String gerarRelatorio() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("FOLHA DE PAGAMENTO DO DIA ").append(data.format(CABECALHO_DATA)).append('\n');
-            sb.append("====================================\n\n");
-            gerarSecaoHoristas(sb);
-            gerarSecaoAssalariados(sb);
-            gerarSecaoComissionados(sb);
-            sb.append("TOTAL FOLHA: ").append(formatarValor(totalBruto())).append('\n');
-            return sb.toString();
-        }
-
-        private void gerarSecaoHoristas(StringBuilder sb) {
-            sb.append("===============================================================================================================================\n");
-            sb.append("===================== HORISTAS ================================================================================================\n");
-            sb.append("===============================================================================================================================\n");
-            sb.append("Nome                                 Horas Extra Salario Bruto Descontos Salario Liquido Metodo\n");
-            sb.append("==================================== ===== ===== ============= ========= =============== ======================================\n");
-
-            for (PagamentoHorista registro : horistas) {
-                StringBuilder linha = new StringBuilder();
-                linha.append(registro.empregado.getNome());
-                appendValor(linha, String.valueOf(registro.horasNormais), 41);
-                appendValor(linha, String.valueOf(registro.horasExtras), 47);
-                appendValor(linha, formatarValor(registro.bruto), 61);
-                appendValor(linha, formatarValor(registro.descontos), 71);
-                appendValor(linha, formatarValor(registro.liquido), 87);
-                appendTexto(linha, formatarMetodo(registro.empregado), 89);
-                sb.append(linha).append('\n');
-            }
-
-            StringBuilder total = new StringBuilder();
-            total.append("TOTAL HORISTAS");
-            appendValor(total, String.valueOf(totalHoras), 41);
-            appendValor(total, String.valueOf(totalExtras), 47);
-            appendValor(total, formatarValor(totalHoristaBruto), 61);
-            appendValor(total, formatarValor(totalHoristaDescontos), 71);
-            appendValor(total, formatarValor(totalHoristaLiquido), 87);
-            sb.append('\n').append(total).append("\n\n");
-        }
-
-        private void gerarSecaoAssalariados(StringBuilder sb) {
-            sb.append("===============================================================================================================================\n");
-            sb.append("===================== ASSALARIADOS ============================================================================================\n");
-            sb.append("===============================================================================================================================\n");
-            sb.append("Nome                                             Salario Bruto Descontos Salario Liquido Metodo\n");
-            sb.append("================================================ ============= ========= =============== ======================================\n");
-
-            for (PagamentoAssalariado registro : assalariados) {
-                StringBuilder linha = new StringBuilder();
-                linha.append(registro.empregado.getNome());
-                appendValor(linha, formatarValor(registro.bruto), 61);
-                appendValor(linha, formatarValor(registro.descontos), 71);
-                appendValor(linha, formatarValor(registro.liquido), 87);
-                appendTexto(linha, formatarMetodo(registro.empregado), 89);
-                sb.append(linha).append('\n');
-            }
-
-            StringBuilder total = new StringBuilder();
-            total.append("TOTAL ASSALARIADOS");
-            appendValor(total, formatarValor(totalAssalariadoBruto), 61);
-            appendValor(total, formatarValor(totalAssalariadoDescontos), 71);
-            appendValor(total, formatarValor(totalAssalariadoLiquido), 87);
-            sb.append('\n').append(total).append("\n\n");
-        }
-
-        private void gerarSecaoComissionados(StringBuilder sb) {
-            sb.append("===============================================================================================================================\n");
-            sb.append("===================== COMISSIONADOS ===========================================================================================\n");
-            sb.append("===============================================================================================================================\n");
-            sb.append("Nome                  Fixo     Vendas   Comissao Salario Bruto Descontos Salario Liquido Metodo\n");
-            sb.append("===================== ======== ======== ======== ============= ========= =============== ======================================\n");
-
-            for (PagamentoComissionado registro : comissionados) {
-                StringBuilder linha = new StringBuilder();
-                linha.append(registro.empregado.getNome());
-                appendValor(linha, formatarValor(registro.fixo), 29);
-                appendValor(linha, formatarValor(registro.vendas), 38);
-                appendValor(linha, formatarValor(registro.comissao), 47);
-                appendValor(linha, formatarValor(registro.bruto), 61);
-                appendValor(linha, formatarValor(registro.descontos), 71);
-                appendValor(linha, formatarValor(registro.liquido), 87);
-                appendTexto(linha, formatarMetodo(registro.empregado), 89);
-                sb.append(linha).append('\n');
-            }
-
-            StringBuilder total = new StringBuilder();
-            total.append("TOTAL COMISSIONADOS");
-            appendValor(total, formatarValor(totalComFixo), 29);
-            appendValor(total, formatarValor(totalComVendas), 38);
-            appendValor(total, formatarValor(totalComComissao), 47);
-            appendValor(total, formatarValor(totalComBruto), 61);
-            appendValor(total, formatarValor(totalComDescontos), 71);
-            appendValor(total, formatarValor(totalComLiquido), 87);
-            sb.append('\n').append(total).append("\n\n");
-        }
-
-        private void appendValor(StringBuilder sb, String valor, int fimInclusivo) {
-            if (valor == null) {
-                valor = "";
-            }
-            int inicio = fimInclusivo - valor.length() + 1;
-            if (inicio < 0) {
-                inicio = 0;
-            }
-            while (sb.length() < inicio) {
-                sb.append(' ');
-            }
-            sb.append(valor);
-        }
-
-        private void appendTexto(StringBuilder sb, String texto, int inicio) {
-            if (texto == null) {
-                texto = "";
-            }
-            while (sb.length() < inicio) {
-                sb.append(' ');
-            }
-            sb.append(texto);
-        }
-
-        private String formatarMetodo(Empregado e) {
+        // so os brutos; como nao sao negativos, a soma estoura exatamente quando a da folha estouraria
+        static String totalBruto(Estado estado, LocalDate data) {
+            SomaBruta soma = new SomaBruta(data);
+            try {
+                estado.paraCadaEmpregadoDoTipo("horista", soma::pagaHoje, soma::somarHorista);
+                estado.paraCadaEmpregadoDoTipo("assalariado", soma::pagaHoje, soma::somarAssalariado);
+                estado.paraCadaEmpregadoDoTipo("comissionado", soma::pagaHoje, soma::somarComissionado);
+            } catch (ArithmeticException e) {
+                return new FolhaPagamento(estado, data, null).totalFormatado();
+            }
+            return Dinheiro.formatar(soma.total);
+        }
+
+        private static final class SomaBruta {
+            private final LocalDate data;
+            private final long fim;
+            private long total;
+
+            private SomaBruta(LocalDate data) {
+                this.data = data;
+                this.fim = data.toEpochDay() + 1;
+            }
+
+            private boolean pagaHoje(String agenda) {
+                AgendaPagamento info = AgendaPagamento.interpretar(agenda);
+                return info != null && info.pagaEm(data);
+            }
+
+            // como calcularHorista
+            private void somarHorista(Empregado e) {
+                AgendaPagamento agenda = e.getAgenda();
+                if (agenda == null) {
+                    return;
+                }
+                long primeiro = inicioDoPeriodo(agenda, data);
+                IndiceDiario cartoes = e.serieDeCartoes().indice();
+                double normais = cartoes.horasExatas(primeiro, fim, false);
+                double extras;
+                if (Double.isNaN(normais)) {
+                    double[] horas = dividirHoras(cartoes, primeiro, fim, LocalDate::ofEpochDay);
+                    normais = horas[0];
+                    extras = horas[1];
+                } else {
+                    extras = cartoes.horasExatas(primeiro, fim, true);
+                }
+                total = Dinheiro.somar(total, brutoHorista(e.getSalario(), normais, extras));
+            }
+
+            private void somarAssalariado(Empregado e) {
+                total = Dinheiro.somar(total, calcularPagamentoAssalariado(e));
+            }
+
+            private void somarComissionado(Empregado e) {
+                AgendaPagamento agenda = e.getAgenda();
+                if (agenda == null) {
+                    return;
+                }
+                long vendas = totalTruncado(e.serieDeVendas().indice(), inicioDoPeriodo(agenda, data), fim);
+                total = Dinheiro.somar(total, Dinheiro.somar(calcularSalarioFixoComissionado(e), calcularComissao(e, vendas)));
+            }
+        }
+
+        // colunas: onde cada valor termina, ou onde o metodo de pagamento comeca
+        private void escreverRelatorio(EscritorRelatorio out) throws IOException {
+            out.texto("FOLHA DE PAGAMENTO DO DIA ").texto(data.format(CABECALHO_DATA)).novaLinha();
+            out.texto("====================================").novaLinha().novaLinha();
+            if (exata != null) {
+                exata.escreverSecoes(out);
+                out.texto("TOTAL FOLHA: ").texto(Dinheiro.formatar(exata.total)).novaLinha();
+                return;
+            }
+            escreverSecaoHoristas(out);
+            escreverSecaoAssalariados(out);
+            escreverSecaoComissionados(out);
+            out.texto("TOTAL FOLHA: ").dinheiroADireita(total, 0).novaLinha();
+        }
+
+        private static void cabecalhoHoristas(EscritorRelatorio out) throws IOException {
+            out.texto("===============================================================================================================================").novaLinha();
+            out.texto("===================== HORISTAS ================================================================================================").novaLinha();
+            out.texto("===============================================================================================================================").novaLinha();
+            out.texto("Nome                                 Horas Extra Salario Bruto Descontos Salario Liquido Metodo").novaLinha();
+            out.texto("==================================== ===== ===== ============= ========= =============== ======================================").novaLinha();
+        }
+
+        private static void cabecalhoAssalariados(EscritorRelatorio out) throws IOException {
+            out.texto("===============================================================================================================================").novaLinha();
+            out.texto("===================== ASSALARIADOS ============================================================================================").novaLinha();
+            out.texto("===============================================================================================================================").novaLinha();
+            out.texto("Nome                                             Salario Bruto Descontos Salario Liquido Metodo").novaLinha();
+            out.texto("================================================ ============= ========= =============== ======================================").novaLinha();
+        }
+
+        private static void cabecalhoComissionados(EscritorRelatorio out) throws IOException {
+            out.texto("===============================================================================================================================").novaLinha();
+            out.texto("===================== COMISSIONADOS ===========================================================================================").novaLinha();
+            out.texto("===============================================================================================================================").novaLinha();
+            out.texto("Nome                  Fixo     Vendas   Comissao Salario Bruto Descontos Salario Liquido Metodo").novaLinha();
+            out.texto("===================== ======== ======== ======== ============= ========= =============== ======================================").novaLinha();
+        }
+
+        private void escreverSecaoHoristas(EscritorRelatorio out) throws IOException {
+            cabecalhoHoristas(out);
+
+            for (PagamentoHorista registro : horistas.registros) {
+                out.texto(String.valueOf(registro.empregado.getNome()))
+                        .aDireita(registro.horasNormais, 41)
+                        .aDireita(registro.horasExtras, 47)
+                        .dinheiroADireita(registro.bruto, 61)
+                        .dinheiroADireita(registro.descontos, 71)
+                        .dinheiroADireita(registro.liquido, 87);
+                escreverMetodo(out, registro.empregado);
+                out.novaLinha();
+            }
+
+            Totais totais = horistas.totais;
+            out.novaLinha().texto("TOTAL HORISTAS")
+                    .aDireita(totais.horas, 41)
+                    .aDireita(totais.extras, 47)
+                    .dinheiroADireita(totais.bruto, 61)
+                    .dinheiroADireita(totais.descontos, 71)
+                    .dinheiroADireita(totais.liquido, 87)
+                    .novaLinha().novaLinha();
+        }
+
+        private void escreverSecaoAssalariados(EscritorRelatorio out) throws IOException {
+            cabecalhoAssalariados(out);
+
+            for (PagamentoAssalariado registro : assalariados.registros) {
+                out.texto(String.valueOf(registro.empregado.getNome()))
+                        .dinheiroADireita(registro.bruto, 61)
+                        .dinheiroADireita(registro.descontos, 71)
+                        .dinheiroADireita(registro.liquido, 87);
+                escreverMetodo(out, registro.empregado);
+                out.novaLinha();
+            }
+
+            Totais totais = assalariados.totais;
+            out.novaLinha().texto("TOTAL ASSALARIADOS")
+                    .dinheiroADireita(totais.bruto, 61)
+                    .dinheiroADireita(totais.descontos, 71)
+                    .dinheiroADireita(totais.liquido, 87)
+                    .novaLinha().novaLinha();
+        }
+
+        private void escreverSecaoComissionados(EscritorRelatorio out) throws IOException {
+            cabecalhoComissionados(out);
+
+            for (PagamentoComissionado registro : comissionados.registros) {
+                out.texto(String.valueOf(registro.empregado.getNome()))
+                        .dinheiroADireita(registro.fixo, 29)
+                        .dinheiroADireita(registro.vendas, 38)
+                        .dinheiroADireita(registro.comissao, 47)
+                        .dinheiroADireita(registro.bruto, 61)
+                        .dinheiroADireita(registro.descontos, 71)
+                        .dinheiroADireita(registro.liquido, 87);
+                escreverMetodo(out, registro.empregado);
+                out.novaLinha();
+            }
+
+            Totais totais = comissionados.totais;
+            out.novaLinha().texto("TOTAL COMISSIONADOS")
+                    .dinheiroADireita(totais.fixo, 29)
+                    .dinheiroADireita(totais.vendas, 38)
+                    .dinheiroADireita(totais.comissao, 47)
+                    .dinheiroADireita(totais.bruto, 61)
+                    .dinheiroADireita(totais.descontos, 71)
+                    .dinheiroADireita(totais.liquido, 87)
+                    .novaLinha().novaLinha();
+        }
+
+        private void escreverMetodo(EscritorRelatorio out, Empregado e) throws IOException {
+            out.coluna(89);
             switch (e.getMetodoPagamento()) {
                 case "emMaos":
-                    return "Em maos";
+                    out.texto("Em maos");
+                    break;
                 case "correios":
-                    return "Correios, " + e.getEndereco();
+                    out.texto("Correios, ").texto(String.valueOf(e.getEndereco()));
+                    break;
                 case "banco":
-                    return e.getBanco() + ", Ag. " + e.getAgencia() + " CC " + e.getContaCorrente();
+                    out.texto(String.valueOf(e.getBanco())).texto(", Ag. ").texto(String.valueOf(e.getAgencia()))
+                            .texto(" CC ").texto(String.valueOf(e.getContaCorrente()));
+                    break;
                 default:
-                    return "";
+                    break;
+            }
+        }
+
+        // refeita em BigDecimal quando algum valor nao cabe em centavos num long
+        private final class FolhaExata {
+            private final List<LinhaExata> horistas = new ArrayList<>();
+            private final List<LinhaExata> assalariados = new ArrayList<>();
+            private final List<LinhaExata> comissionados = new ArrayList<>();
+            private final BigDecimal total;
+
+            private FolhaExata() {
+                for (Empregado e : estado.getEmpregadosDoTipo("horista", FolhaPagamento.this::pagaHoje)) {
+                    adicionar(horistas, horista(e));
+                }
+                for (Empregado e : estado.getEmpregadosDoTipo("assalariado", FolhaPagamento.this::pagaHoje)) {
+                    adicionar(assalariados, assalariado(e));
+                }
+                for (Empregado e : estado.getEmpregadosDoTipo("comissionado", FolhaPagamento.this::pagaHoje)) {
+                    adicionar(comissionados, comissionado(e));
+                }
+                total = brutos(horistas).add(brutos(assalariados)).add(brutos(comissionados));
+            }
+
+            private LinhaExata horista(Empregado e) {
+                AgendaPagamento agenda = e.getAgenda();
+                if (agenda == null) {
+                    return null;
+                }
+                double[] horas = dividirHoras(e.serieDeCartoes().indice(), inicioDoPeriodo(agenda, data),
+                        data.toEpochDay() + 1, LocalDate::ofEpochDay);
+                BigDecimal salario = BigDecimal.valueOf(e.getSalario());
+                BigDecimal bruto = truncar(salario.multiply(BigDecimal.valueOf(horas[0])));
+                if (horas[1] > 0) {
+                    BigDecimal horaExtra = salario.multiply(BigDecimal.valueOf(3))
+                            .divide(BigDecimal.valueOf(2), 10, RoundingMode.HALF_UP);
+                    bruto = bruto.add(truncar(horaExtra.multiply(BigDecimal.valueOf(horas[1]))));
+                }
+                BigDecimal descontos = BigDecimal.ZERO;
+                if (e.isSindicalizado() && bruto.signum() > 0) {
+                    long dias = diasDeTaxaSindicalHorista(e, data);
+                    if (dias >= 0) {
+                        descontos = taxaSindical(e, dias);
+                    }
+                    descontos = descontos.add(taxasServico(e,
+                            ajustarUltimoPagamento(obterUltimoPagamentoHorista(e, data)))).min(bruto);
+                }
+                return new LinhaExata(e, (int) Math.round(horas[0]), (int) Math.round(horas[1]), bruto, descontos);
+            }
+
+            private LinhaExata assalariado(Empregado e) {
+                BigDecimal bruto = salarioFixo(e);
+                BigDecimal descontos = BigDecimal.ZERO;
+                if (e.isSindicalizado() && bruto.signum() > 0) {
+                    descontos = taxaSindical(e, diasDeTaxaSindicalPorAgenda(e, data)).add(taxasServico(e,
+                            ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, data)))).min(bruto);
+                }
+                return new LinhaExata(e, 0, 0, bruto, descontos);
+            }
+
+            private LinhaExata comissionado(Empregado e) {
+                AgendaPagamento agenda = e.getAgenda();
+                if (agenda == null) {
+                    return null;
+                }
+                BigDecimal fixo = salarioFixo(e);
+                BigDecimal vendas = totalTruncado(e.serieDeVendas().indice(), inicioDoPeriodo(agenda, data),
+                        data.toEpochDay() + 1);
+                BigDecimal comissao = e.getComissao() == null
+                        ? BigDecimal.ZERO
+                        : truncar(vendas.multiply(BigDecimal.valueOf(e.getComissao())));
+                BigDecimal bruto = fixo.add(comissao);
+                BigDecimal descontos = BigDecimal.ZERO;
+                if (e.isSindicalizado()) {
+                    descontos = taxaSindical(e, diasDeTaxaSindicalPorAgenda(e, data)).add(taxasServico(e,
+                            ajustarUltimoPagamento(obterUltimoPagamentoPorAgenda(e, data)))).min(bruto);
+                }
+                LinhaExata linha = new LinhaExata(e, 0, 0, bruto, descontos);
+                linha.fixo = fixo;
+                linha.vendas = vendas;
+                linha.comissao = comissao;
+                return linha;
+            }
+
+            private BigDecimal salarioFixo(Empregado e) {
+                AgendaPagamento info = e.getAgenda();
+                if (info == null) {
+                    return BigDecimal.ZERO;
+                }
+                BigDecimal salario = BigDecimal.valueOf(e.getSalario());
+                if (info.isSemanal()) {
+                    return truncar(salario.multiply(BigDecimal.valueOf(12L * info.getFrequenciaSemanas()))
+                            .divide(BigDecimal.valueOf(52), 10, RoundingMode.HALF_UP));
+                }
+                return truncar(salario);
+            }
+
+            private BigDecimal taxaSindical(Empregado e, long dias) {
+                return truncar(BigDecimal.valueOf(e.getTaxaSindical()).multiply(BigDecimal.valueOf(dias)));
+            }
+
+            private BigDecimal taxasServico(Empregado e, LocalDate ultimoPagamento) {
+                long depoisDe = ultimoPagamento == null ? Long.MIN_VALUE : ultimoPagamento.toEpochDay();
+                return totalTruncado(e.serieDeTaxas().indice(), depoisDe + 1, data.toEpochDay() + 1);
+            }
+
+            private BigDecimal totalTruncado(IndiceDiario indice, long de, long ate) {
+                BigDecimal total = BigDecimal.ZERO;
+                int fim = indice.inicio(ate);
+                for (int i = indice.inicio(de); i < fim; i++) {
+                    total = total.add(truncar(BigDecimal.valueOf(indice.valor(i))));
+                }
+                return total;
+            }
+
+            private BigDecimal truncar(BigDecimal valor) {
+                return valor.setScale(2, RoundingMode.DOWN);
+            }
+
+            private void adicionar(List<LinhaExata> secao, LinhaExata linha) {
+                if (linha != null) {
+                    secao.add(linha);
+                }
+            }
+
+            private BigDecimal brutos(List<LinhaExata> secao) {
+                BigDecimal soma = BigDecimal.ZERO;
+                for (LinhaExata linha : secao) {
+                    soma = soma.add(linha.bruto);
+                }
+                return soma;
+            }
+
+            private void escreverSecoes(EscritorRelatorio out) throws IOException {
+                cabecalhoHoristas(out);
+                escreverLinhas(out, horistas, "TOTAL HORISTAS", true, false);
+                cabecalhoAssalariados(out);
+                escreverLinhas(out, assalariados, "TOTAL ASSALARIADOS", false, false);
+                cabecalhoComissionados(out);
+                escreverLinhas(out, comissionados, "TOTAL COMISSIONADOS", false, true);
+            }
+
+            // mesmas colunas das secoes de FolhaPagamento
+            private void escreverLinhas(EscritorRelatorio out, List<LinhaExata> secao, String rotulo,
+                                        boolean horas, boolean comissao) throws IOException {
+                LinhaExata totais = new LinhaExata(null, 0, 0, BigDecimal.ZERO, BigDecimal.ZERO);
+                for (LinhaExata linha : secao) {
+                    out.texto(String.valueOf(linha.empregado.getNome()));
+                    escreverValores(out, linha, horas, comissao);
+                    escreverMetodo(out, linha.empregado);
+                    out.novaLinha();
+                    totais.somar(linha);
+                }
+                out.novaLinha().texto(rotulo);
+                escreverValores(out, totais, horas, comissao);
+                out.novaLinha().novaLinha();
+            }
+
+            private void escreverValores(EscritorRelatorio out, LinhaExata linha, boolean horas, boolean comissao)
+                    throws IOException {
+                if (horas) {
+                    out.aDireita(linha.horas, 41).aDireita(linha.extras, 47);
+                }
+                if (comissao) {
+                    out.aDireita(Dinheiro.formatar(linha.fixo), 29)
+                            .aDireita(Dinheiro.formatar(linha.vendas), 38)
+                            .aDireita(Dinheiro.formatar(linha.comissao), 47);
+                }
+                out.aDireita(Dinheiro.formatar(linha.bruto), 61)
+                        .aDireita(Dinheiro.formatar(linha.descontos), 71)
+                        .aDireita(Dinheiro.formatar(linha.liquido), 87);
             }
         }
     }
 
-    private static class PagamentoHorista {
+    // Um pagamento da FolhaExata, ou os totais de uma secao dela
+    private static final class LinhaExata {
         private final Empregado empregado;
-        private final int horasNormais;
-        private final int horasExtras;
-        private final BigDecimal bruto;
-        private final BigDecimal descontos;
-        private final BigDecimal liquido;
-
-        private PagamentoHorista(Empregado empregado, int horasNormais, int horasExtras, BigDecimal bruto, BigDecimal descontos, BigDecimal liquido) {
+        private int horas;
+        private int extras;
+        private BigDecimal fixo = BigDecimal.ZERO;
+        private BigDecimal vendas = BigDecimal.ZERO;
+        private BigDecimal comissao = BigDecimal.ZERO;
+        private BigDecimal bruto;
+        private BigDecimal descontos;
+        private BigDecimal liquido;
+
+        private LinhaExata(Empregado empregado, int horas, int extras, BigDecimal bruto, BigDecimal descontos) {
             this.empregado = empregado;
-            this.horasNormais = horasNormais;
-            this.horasExtras = horasExtras;
+            this.horas = horas;
+            this.extras = extras;
             this.bruto = bruto;
             this.descontos = descontos;
-            this.liquido = liquido;
+            this.liquido = bruto.subtract(descontos);
+        }
+
+        private void somar(LinhaExata linha) {
+            horas += linha.horas;
+            extras += linha.extras;
+            fixo = fixo.add(linha.fixo);
+            vendas = vendas.add(linha.vendas);
+            comissao = comissao.add(linha.comissao);
+            bruto = bruto.add(linha.bruto);
+            descontos = descontos.add(linha.descontos);
+            liquido = liquido.add(linha.liquido);
         }
     }
 
-    private static class PagamentoAssalariado {
-        private final Empregado empregado;
-        private final BigDecimal bruto;
-        private final BigDecimal descontos;
-        private final BigDecimal liquido;
+    // valores em centavos (ver Dinheiro)
+    private abstract static class Pagamento {
+        final Empregado empregado;
+        final long bruto;
+        final long descontos;
+        final long liquido;
 
-        private PagamentoAssalariado(Empregado empregado, BigDecimal bruto, BigDecimal descontos, BigDecimal liquido) {
+        private Pagamento(Empregado empregado, long bruto, long descontos, long liquido) {
             this.empregado = empregado;
             this.bruto = bruto;
             this.descontos = descontos;
             this.liquido = liquido;
         }
+
+        void somarEm(Totais totais) {
+            totais.bruto = Dinheiro.somar(totais.bruto, bruto);
+            totais.descontos = Dinheiro.somar(totais.descontos, descontos);
+            totais.liquido = Dinheiro.somar(totais.liquido, liquido);
+        }
     }
 
-    private static class PagamentoComissionado {
-        private final Empregado empregado;
-        private final BigDecimal fixo;
-        private final BigDecimal vendas;
-        private final BigDecimal comissao;
-        private final BigDecimal bruto;
-        private final BigDecimal descontos;
-        private final BigDecimal liquido;
-
-        private PagamentoComissionado(Empregado empregado, BigDecimal fixo, BigDecimal vendas, BigDecimal comissao, BigDecimal bruto, BigDecimal descontos, BigDecimal liquido) {
-            this.empregado = empregado;
+    private static class PagamentoHorista extends Pagamento {
+        private final int horasNormais;
+        private final int horasExtras;
+
+        private PagamentoHorista(Empregado empregado, int horasNormais, int horasExtras, long bruto, long descontos, long liquido) {
+            super(empregado, bruto, descontos, liquido);
+            this.horasNormais = horasNormais;
+            this.horasExtras = horasExtras;
+        }
+
+        @Override
+        void somarEm(Totais totais) {
+            totais.horas += horasNormais;
+            totais.extras += horasExtras;
+            super.somarEm(totais);
+        }
+    }
+
+    private static class PagamentoAssalariado extends Pagamento {
+        private PagamentoAssalariado(Empregado empregado, long bruto, long descontos, long liquido) {
+            super(empregado, bruto, descontos, liquido);
+        }
+    }
+
+    private static class PagamentoComissionado extends Pagamento {
+        private final long fixo;
+        private final long vendas;
+        private final long comissao;
+
+        private PagamentoComissionado(Empregado empregado, long fixo, long vendas, long comissao, long bruto, long descontos, long liquido) {
+            super(empregado, bruto, descontos, liquido);
             this.fixo = fixo;
             this.vendas = vendas;
             this.comissao = comissao;
-            this.bruto = bruto;
-            this.descontos = descontos;
-            this.liquido = liquido;
+        }
+
+        @Override
+        void somarEm(Totais totais) {
+            totais.fixo = Dinheiro.somar(totais.fixo, fixo);
+            totais.vendas = Dinheiro.somar(totais.vendas, vendas);
+            totais.comissao = Dinheiro.somar(totais.comissao, comissao);
+            super.somarEm(totais);
+        }
+    }
+
+    // centavos nao negativos: somar por partes estoura se e somente se somar um a um estouraria
+    private static final class Totais {
+        private int horas;
+        private int extras;
+        private long fixo;
+        private long vendas;
+        private long comissao;
+        private long bruto;
+        private long descontos;
+        private long liquido;
+
+        private void somar(Totais outros) {
+            horas += outros.horas;
+            extras += outros.extras;
+            fixo = Dinheiro.somar(fixo, outros.fixo);
+            vendas = Dinheiro.somar(vendas, outros.vendas);
+            comissao = Dinheiro.somar(comissao, outros.comissao);
+            bruto = Dinheiro.somar(bruto, outros.bruto);
+            descontos = Dinheiro.somar(descontos, outros.descontos);
+            liquido = Dinheiro.somar(liquido, outros.liquido);
+        }
+    }
+
+    // 'erro' e a primeira falha do trecho; o que vem depois dela nao e calculado
+    private static final class Secao<R extends Pagamento> {
+        private final List<R> registros;
+        private final Totais totais = new Totais();
+        private RuntimeException erro;
+
+        private Secao(List<R> registros) {
+            this.registros = registros;
+        }
+
+        static <R extends Pagamento> Secao<R> calcular(List<Empregado> empregados, int de, int ate,
+                                                        Function<Empregado, R> calculo) {
+            Secao<R> secao = new Secao<>(new ArrayList<>(ate - de));
+            try {
+                for (int i = de; i < ate; i++) {
+                    R registro = calculo.apply(empregados.get(i));
+                    if (registro != null) {
+                        secao.registros.add(registro);
+                        registro.somarEm(secao.totais);
+                    }
+                }
+            } catch (RuntimeException e) {
+                secao.erro = e;
+            }
+            return secao;
+        }
+
+        // esta secao seguida de 'depois'; a falha que fica e a que a soma em sequencia acharia primeiro
+        Secao<R> juntar(Secao<R> depois) {
+            if (erro != null) {
+                return this;
+            }
+            Secao<R> juntas = new Secao<>(new ArrayList<>(registros.size() + depois.registros.size()));
+            juntas.registros.addAll(registros);
+            juntas.registros.addAll(depois.registros);
+            try {
+                juntas.totais.somar(totais);
+                juntas.totais.somar(depois.totais);
+                juntas.erro = depois.erro;
+            } catch (RuntimeException e) {
+                juntas.erro = e;
+            }
+            return juntas;
         }
     }
 
-    public static void undo() {
-        verificarSistemaAtivo();
-        if (undoStack.isEmpty()) {
-            throw new IllegalArgumentException("Nao ha comando a desfazer.");
+    // as metades sao juntadas na ordem, entao o resultado nao depende de quem calculou o que
+    private static final class CalculoSecao<R extends Pagamento> extends RecursiveTask<Secao<R>> {
+        private static final long serialVersionUID = 1L;
+        private static final int LOTE = 32;
+        private final List<Empregado> empregados;
+        private final int de;
+        private final int ate;
+        private final Function<Empregado, R> calculo;
+
+        private CalculoSecao(List<Empregado> empregados, int de, int ate, Function<Empregado, R> calculo) {
+            this.empregados = empregados;
+            this.de = de;
+            this.ate = ate;
+            this.calculo = calculo;
         }
 
-        Snapshot atual = criarSnapshot();
-        Snapshot anterior = undoStack.pop();
-        redoStack.push(atual);
-        restaurarSnapshot(anterior);
+        @Override
+        protected Secao<R> compute() {
+            if (ate - de <= LOTE) {
+                return Secao.calcular(empregados, de, ate, calculo);
+            }
+            int meio = (de + ate) >>> 1;
+            CalculoSecao<R> primeira = new CalculoSecao<>(empregados, de, meio, calculo);
+            primeira.fork();
+            Secao<R> segunda = new CalculoSecao<>(empregados, meio, ate, calculo).compute();
+            return primeira.join().juntar(segunda);
+        }
     }
 
-    public static void redo() {
-        verificarSistemaAtivo();
-        if (redoStack.isEmpty()) {
-            throw new IllegalArgumentException("Nao ha comando a refazer.");
+    public static void undo() {
+        Registro registro;
+        synchronized (ESCRITA) {
+            verificarSistemaAtivo();
+            if (undoStack.isEmpty()) {
+                throw new IllegalArgumentException("Nao ha comando a desfazer.");
+            }
+
+            Snapshot atual = criarSnapshot();
+            Snapshot anterior = undoStack.pop(estado());
+            redoStack.push(atual);
+            registro = restaurarSnapshot(anterior);
         }
+        registro.aguardarDisco();
+    }
 
-        Snapshot atual = criarSnapshot();
-        Snapshot proximo = redoStack.pop();
-        undoStack.push(atual);
-        restaurarSnapshot(proximo);
+    public static void redo() {
+        Registro registro;
+        synchronized (ESCRITA) {
+            verificarSistemaAtivo();
+            if (redoStack.isEmpty()) {
+                throw new IllegalArgumentException("Nao ha comando a refazer.");
+            }
+
+            Snapshot atual = criarSnapshot();
+            Snapshot proximo = redoStack.pop(estado());
+            undoStack.push(atual);
+            registro = restaurarSnapshot(proximo);
+        }
+        registro.aguardarDisco();
     }
 
     private static void verificarSistemaAtivo() {
@@ -1489,197 +1853,322 @@ public class Database {
         }
     }
 
-    private static void executarComando(Runnable acao) {
-        verificarSistemaAtivo();
-        Snapshot anterior = criarSnapshot();
-        try {
-            acao.run();
+    // a acao devolve o novo estado sem tocar no atual, entao um comando rejeitado nao deixa rastro;
+    // o comando so volta com o registro no disco, mas o force e esperado fora do lock de escrita
+    private static void executarComando(Supplier<Estado> acao) {
+        Registro registro;
+        synchronized (ESCRITA) {
+            verificarSistemaAtivo();
+            Snapshot anterior = criarSnapshot();
+            registro = publicar(acao.get());
             undoStack.push(anterior);
             redoStack.clear();
-        } catch (RuntimeException e) {
-            restaurarSnapshot(anterior);
-            throw e;
         }
+        registro.aguardarDisco();
     }
 
-    private static <T> T executarComando(Supplier<T> acao) {
-        verificarSistemaAtivo();
-        Snapshot anterior = criarSnapshot();
-        try {
-            T resultado = acao.get();
-            undoStack.push(anterior);
+    // entrada de undo que aponta para a mesma raiz: desfaze-la nao muda nada
+    private static void registrarComandoSemAlteracao() {
+        synchronized (ESCRITA) {
+            undoStack.push(criarSnapshot());
             redoStack.clear();
-            return resultado;
-        } catch (RuntimeException e) {
-            restaurarSnapshot(anterior);
-            throw e;
         }
     }
 
     private static Snapshot criarSnapshot() {
-        return new Snapshot(copiarEmpregados(), Empregado.getProximoId(), copiarAgendasDisponiveis(), copiarAgendasPersonalizadas());
+        return new Snapshot(estado(), Empregado.getProximoId());
     }
 
-    private static void restaurarSnapshot(Snapshot snapshot) {
-        empregados = snapshot.empregados;
+    private static Registro restaurarSnapshot(Snapshot snapshot) {
         Empregado.definirProximoId(snapshot.proximoId);
-        AGENDAS_DISPONIVEIS.clear();
-        AGENDAS_DISPONIVEIS.putAll(snapshot.agendasDisponiveis);
-        agendasPersonalizadas = new HashSet<>(snapshot.agendasPersonalizadas);
+        Registro registro = publicar(snapshot.estado);
+        trocarEstado(estado());
         if (snapshot.historicoUndo != null) {
-            undoStack = copiarPilha(snapshot.historicoUndo);
-        }
+            undoStack = snapshot.historicoUndo.copia();
+        }
+        return registro;
+    }
+
+    // Todo novo estado e gravado no diario antes de ser publicado
+    private static Registro publicar(Estado novo) {
+        Estado anterior = estado();
+        int proximoId = Empregado.getProximoId();
+        if (novo == anterior && proximoId == proximoIdPublicado) {
+            return Registro.NENHUM;
+        }
+        long lsn = diario.registrar(out -> {
+            out.writeInt(proximoId);
+            boolean agendasAlteradas = !novo.mesmasAgendas(anterior);
+            out.writeBoolean(agendasAlteradas);
+            if (agendasAlteradas) {
+                Collection<String> agendas = novo.getAgendasPersonalizadas();
+                out.writeInt(agendas.size());
+                for (String agenda : agendas) {
+                    out.writeUTF(agenda);
+                }
+            }
+            Codificador.escreverDiferenca(out, novo, anterior);
+        });
+        trocarEstado(novo);
+        proximoIdPublicado = proximoId;
+        diario.checkpointSeNecessario((destino, ate) -> gravarCheckpoint(destino, novo, proximoId, ate));
+        return new Registro(diario, lsn);
     }
 
-    private static Map<String, Empregado> copiarEmpregados() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(baos);
-            out.writeObject(empregados);
-            out.flush();
-            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
-            return (Map<String, Empregado>) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException("Erro ao copiar estado dos empregados.", e);
+    // registro ja gravado no diario, cujo force ainda pode estar pendente
+    private static final class Registro {
+        private static final Registro NENHUM = new Registro(null, 0);
+        private final Diario diario;
+        private final long lsn;
+
+        private Registro(Diario diario, long lsn) {
+            this.diario = diario;
+            this.lsn = lsn;
+        }
+
+        private void aguardarDisco() {
+            if (diario != null) {
+                diario.aguardarDisco(lsn);
+            }
         }
     }
 
-    private static Map<String, String> copiarAgendasDisponiveis() {
-        return new HashMap<>(AGENDAS_DISPONIVEIS);
+    private static Estado estado() {
+        return raiz.estado;
     }
 
-    private static Set<String> copiarAgendasPersonalizadas() {
-        return new HashSet<>(agendasPersonalizadas);
+    // so com ESCRITA, ou na carga, antes de o banco ser usado
+    private static void trocarEstado(Estado novo) {
+        raiz = new Versao(novo, raiz.numero + 1);
     }
 
-    private static Deque<Snapshot> copiarPilha(Deque<Snapshot> origem) {
-        if (origem == null || origem.isEmpty()) {
-            return new ArrayDeque<>();
+    private static final class Versao {
+        private final Estado estado;
+        private final long numero;
+
+        private Versao(Estado estado, long numero) {
+            this.estado = estado;
+            this.numero = numero;
         }
-        return new ArrayDeque<>(origem);
     }
 
-    private static class Snapshot {
-        private final Map<String, Empregado> empregados;
-        private final int proximoId;
-        private final Map<String, String> agendasDisponiveis;
-        private final Set<String> agendasPersonalizadas;
-        private final Deque<Snapshot> historicoUndo;
-
-        private Snapshot(Map<String, Empregado> empregados, int proximoId,
-                         Map<String, String> agendasDisponiveis, Set<String> agendasPersonalizadas) {
-            this(empregados, proximoId, agendasDisponiveis, agendasPersonalizadas, null);
+    private static void reaplicar(DataInputStream in) throws IOException {
+        Empregado.definirProximoId(in.readInt());
+        if (in.readBoolean()) {
+            List<String> agendas = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                agendas.add(in.readUTF());
+            }
+            trocarEstado(estado().comAgendasDe(estadoComAgendas(agendas)));
         }
+        trocarEstado(Codificador.lerDiferenca(in, estado()));
+    }
 
-        private Snapshot(Map<String, Empregado> empregados, int proximoId,
-                         Map<String, String> agendasDisponiveis, Set<String> agendasPersonalizadas,
-                         Deque<Snapshot> historicoUndo) {
-            this.empregados = empregados;
-            this.proximoId = proximoId;
-            this.agendasDisponiveis = agendasDisponiveis;
-            this.agendasPersonalizadas = agendasPersonalizadas;
-            this.historicoUndo = historicoUndo;
+    private static Estado estadoComAgendas(Collection<String> agendasPersonalizadas) {
+        Estado resultado = estadoInicial();
+        for (String agenda : agendasPersonalizadas) {
+            AgendaPagamento interpretada = AgendaPagamento.interpretar(agenda);
+            if (interpretada != null) {
+                resultado = resultado.comAgenda(interpretada, true);
+            }
         }
+        return resultado;
     }
 
+    // Formato antigo do checkpoint (serializacao do Java), lido apenas para migracao
     private static class EstadoPersistido implements Serializable {
         private static final long serialVersionUID = 1L;
         private final Map<String, Empregado> empregados;
         private final Set<String> agendasPersonalizadas;
+        private final long lsn;
+        private final int proximoId;
 
-        private EstadoPersistido(Map<String, Empregado> empregados, Set<String> agendasPersonalizadas) {
+        private EstadoPersistido(Map<String, Empregado> empregados, Set<String> agendasPersonalizadas,
+                                 long lsn, int proximoId) {
             this.empregados = empregados;
             this.agendasPersonalizadas = agendasPersonalizadas;
+            this.lsn = lsn;
+            this.proximoId = proximoId;
         }
     }
 
     private static void carregar() {
-        reiniciarAgendasDisponiveis();
-        Map<String, Empregado> carregados = null;
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(ARQUIVO))) {
-            Object obj = in.readObject();
-            if (obj instanceof EstadoPersistido) {
-                EstadoPersistido estado = (EstadoPersistido) obj;
-                carregados = estado.empregados != null ? estado.empregados : new HashMap<>();
-                if (estado.agendasPersonalizadas != null) {
-                    for (String agenda : estado.agendasPersonalizadas) {
-                        AgendaInfo info = interpretarAgenda(agenda);
-                        if (info != null) {
-                            registrarAgenda(info, true);
-                        }
-                    }
+        // um criarEmpregado rejeitado consome um id fora do diario, entao o contador nunca volta
+        int contadorAtual = Empregado.getProximoId();
+        // as colunas mapeadas sao refeitas a partir do checkpoint e do diario
+        TipoLancamento.descartarArmazens();
+        long lsn = 0;
+        int proximoId = 0;
+        boolean migrar = false;
+        FormatoBinario.ArquivoAberto aberto = null;
+        try {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(ARQUIVO)), 1 << 16)) {
+                if (FormatoBinario.ehSerializacaoJava(in)) {
+                    EstadoPersistido persistido = lerFormatoAntigo(in);
+                    lsn = persistido.lsn;
+                    proximoId = persistido.proximoId > 0 ? persistido.proximoId : proximoIdPelosIds(estado());
+                    migrar = true;
                 }
-            } else if (obj instanceof Map) {
-                carregados = (Map<String, Empregado>) obj;
             }
-        } catch (Exception e) {
-            carregados = new HashMap<>();
-        }
-        if (carregados == null) {
-            carregados = new HashMap<>();
+            if (!migrar) {
+                // so os cadastros sao lidos agora; os historicos ficam no arquivo ate o primeiro acesso
+                List<Empregado> carregados = new ArrayList<>();
+                FormatoBinario.Cabecalho cabecalho = FormatoBinario.ler(
+                        FileChannel.open(Paths.get(ARQUIVO), StandardOpenOption.READ), carregados::add);
+                aberto = cabecalho.arquivo;
+                trocarEstado(estadoComAgendas(cabecalho.agendasPersonalizadas));
+                for (Empregado e : carregados) {
+                    garantirAgenda(e);
+                    trocarEstado(estado().comEmpregado(e));
+                }
+                lsn = cabecalho.lsn;
+                proximoId = cabecalho.proximoId;
+            }
+        } catch (NoSuchFileException e) {
+            trocarEstado(estadoInicial());
+            lsn = 0;
+            proximoId = 0;
+            migrar = false;
+        } catch (IOException | RuntimeException | ClassNotFoundException e) {
+            fecharSemFalhar(aberto);
+            throw new RuntimeException("Erro ao ler o arquivo de dados.", e);
+        }
+        if (migrar) {
+            long lsnMigrado = lsn;
+            int proximoIdMigrado = proximoId;
+            Estado migrado = estado();
+            try {
+                Diario.gravarCheckpoint(new File(ARQUIVO),
+                        (destino, l) -> gravarCheckpoint(destino, migrado, proximoIdMigrado, l), lsnMigrado);
+            } catch (IOException e) {
+                throw new RuntimeException("Erro ao converter o arquivo de dados.", e);
+            }
         }
-        empregados = carregados;
-        for (Empregado e : empregados.values()) {
-            garantirAgenda(e);
+        Empregado.definirProximoId(proximoId);
+        try {
+            diario = Diario.abrir(new File(ARQUIVO), aberto, lsn, Database::reaplicar);
+        } catch (IOException | RuntimeException e) {
+            fecharSemFalhar(aberto);
+            throw new RuntimeException("Erro ao ler o diario de alteracoes.", e);
         }
+        Empregado.definirProximoId(Math.max(contadorAtual, Empregado.getProximoId()));
+        proximoIdPublicado = Empregado.getProximoId();
         sistemaEncerrado = false;
         undoStack.clear();
         redoStack.clear();
+        Historico.descartarArquivo();
         descartarHistoricoNoProximoZerar = true;
     }
 
-    private static void salvar() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(ARQUIVO))) {
-            EstadoPersistido estado = new EstadoPersistido(new HashMap<>(empregados), new HashSet<>(agendasPersonalizadas));
-            out.writeObject(estado);
+    private static void fecharSemFalhar(Closeable arquivo) {
+        if (arquivo == null) {
+            return;
+        }
+        try {
+            arquivo.close();
         } catch (IOException e) {
-            // ignora problemas de IO
+            // a carga ja falhou; este erro nao acrescenta nada
         }
     }
 
-    public static void encerrarSistema() {
-        salvar();
-        sistemaEncerrado = true;
-        undoStack.clear();
-        redoStack.clear();
-        descartarHistoricoNoProximoZerar = true;
+    @SuppressWarnings("unchecked")
+    private static EstadoPersistido lerFormatoAntigo(InputStream origem) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(origem);
+        Object obj = in.readObject();
+        Map<String, Empregado> carregados = null;
+        EstadoPersistido persistido = new EstadoPersistido(null, null, 0, 0);
+        trocarEstado(estadoInicial());
+        if (obj instanceof EstadoPersistido) {
+            persistido = (EstadoPersistido) obj;
+            carregados = persistido.empregados;
+            if (persistido.agendasPersonalizadas != null) {
+                trocarEstado(estadoComAgendas(persistido.agendasPersonalizadas));
+            }
+        } else if (obj instanceof Map) {
+            carregados = (Map<String, Empregado>) obj;
+        }
+        if (carregados != null) {
+            for (Empregado e : carregados.values()) {
+                garantirAgenda(e);
+                trocarEstado(estado().comEmpregado(e));
+            }
+        }
+        return persistido;
     }
 
-    public static void zerarSistema() {
-        if (sistemaEncerrado) {
-            limparDadosPersistidos();
-            sistemaEncerrado = false;
-            undoStack.clear();
-            redoStack.clear();
-            descartarHistoricoNoProximoZerar = false;
-            return;
+    // arquivos antigos nao guardavam o contador; continua depois do maior id existente
+    private static int proximoIdPelosIds(Estado estado) {
+        int maior = 0;
+        for (Empregado e : estado.getEmpregados()) {
+            try {
+                maior = Math.max(maior, Integer.parseInt(e.getId().substring(3)));
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                // id fora do padrao EMPn
+            }
         }
+        return maior + 1;
+    }
 
-        verificarSistemaAtivo();
-        Snapshot anterior = criarSnapshot();
-        Deque<Snapshot> historicoAnterior = descartarHistoricoNoProximoZerar
-                ? new ArrayDeque<>()
-                : copiarPilha(undoStack);
-        try {
-            limparDadosPersistidos();
-            sistemaEncerrado = false;
-            undoStack.clear();
-            redoStack.clear();
-            undoStack.push(new Snapshot(anterior.empregados, anterior.proximoId, new HashMap<>(anterior.agendasDisponiveis), new HashSet<>(anterior.agendasPersonalizadas), historicoAnterior));
-            descartarHistoricoNoProximoZerar = false;
-        } catch (RuntimeException e) {
-            restaurarSnapshot(anterior);
-            throw e;
+    private static void gravarCheckpoint(File destino, Estado estado, int proximoId, long lsn) throws IOException {
+        try (OutputStream out = new FileOutputStream(destino)) {
+            FormatoBinario.escrever(out, estado, proximoId, lsn);
+        }
+    }
+
+    // Tudo ja esta no diario; basta garantir que chegou ao disco
+    public static void encerrarSistema() {
+        synchronized (ESCRITA) {
+            try {
+                if (diario != null) {
+                    diario.fechar();
+                }
+            } finally {
+                sistemaEncerrado = true;
+                undoStack.clear();
+                redoStack.clear();
+                Historico.descartarArquivo();
+                descartarHistoricoNoProximoZerar = true;
+            }
+        }
+    }
+
+    public static void zerarSistema() {
+        synchronized (ESCRITA) {
+            if (diario == null) {
+                carregar();
+            }
+            if (sistemaEncerrado) {
+                limparDadosPersistidos();
+                sistemaEncerrado = false;
+                undoStack.clear();
+                redoStack.clear();
+                descartarHistoricoNoProximoZerar = false;
+                return;
+            }
+
+            verificarSistemaAtivo();
+            Snapshot anterior = criarSnapshot();
+            Historico historicoAnterior = descartarHistoricoNoProximoZerar
+                    ? new Historico()
+                    : undoStack.copia();
+            try {
+                limparDadosPersistidos();
+                sistemaEncerrado = false;
+                undoStack.clear();
+                redoStack.clear();
+                undoStack.push(new Snapshot(anterior.estado, anterior.proximoId, historicoAnterior));
+                descartarHistoricoNoProximoZerar = false;
+            } catch (RuntimeException e) {
+                restaurarSnapshot(anterior);
+                throw e;
+            }
         }
     }
 
     private static void limparDadosPersistidos() {
-        empregados.clear();
+        diario.apagar();
+        trocarEstado(estadoInicial());
         Empregado.resetContador();
-        reiniciarAgendasDisponiveis();
-        File f = new File(ARQUIVO);
-        if (f.exists()) {
-            f.delete();
-        }
+        proximoIdPublicado = Empregado.getProximoId();
     }
 }
@@ -0,0 +1,173 @@
+package br.ufal.ic.p2.wepayu.models;
+
+// Datas d/M/yyyy como dias desde 1970. ler() aceita exatamente o que o banco aceitava ao validar
+// com split("/"), Integer.parseInt e SimpleDateFormat("d/M/yyyy") estrito, sem alocar nada: o
+// mesmo calendario (juliano antes de 15/10/1582), zeros a esquerda, digitos nao ASCII e texto
+// sobrando depois do ano. Em vez de lancar excecoes, devolve o tipo de erro, porque cada
+// chamador tem a sua mensagem.
+final class Datas {
+    // "Data invalida.": texto vazio, numero errado de partes ou mes fora de 1..12
+    static final long FORMATO_INVALIDO = Long.MIN_VALUE;
+    // "Data inicial/final invalida.": parte nao numerica, dia <= 0 ou data inexistente
+    static final long VALOR_INVALIDO = Long.MIN_VALUE + 1;
+
+    // primeiro dia do calendario gregoriano; o dia anterior e 4/10/1582 no juliano
+    static final long INICIO_GREGORIANO = -141427;
+    // ultimo dia representavel em java.util.Date
+    private static final long ULTIMO_DIA = Math.floorDiv(Long.MAX_VALUE, 86_400_000L);
+    private static final int DIAS_ATE_1970 = 719_468;
+    private static final int DIA_JULIANO_1970 = 2_440_588;
+
+    private Datas() {
+    }
+
+    static boolean valida(long dia) {
+        return dia != FORMATO_INVALIDO && dia != VALOR_INVALIDO;
+    }
+
+    // Dia da data de um lancamento; os lancamentos guardam o dia num int
+    static int diaDoLancamento(String data) {
+        long dia = ler(data);
+        if (!valida(dia) || dia != (int) dia) {
+            throw new IllegalArgumentException("Data invalida.");
+        }
+        return (int) dia;
+    }
+
+    // O texto original quando ele nao e a forma d/M/yyyy do dia, ou null
+    static String porExtenso(String data, long dia) {
+        return texto(dia).equals(data) ? null : data;
+    }
+
+    static long ler(String data) {
+        if (data == null) {
+            return FORMATO_INVALIDO;
+        }
+        int fim = data.length();
+        // split descarta as partes vazias do final
+        while (fim > 0 && data.charAt(fim - 1) == '/') {
+            fim--;
+        }
+        if (fim == 0 || data.trim().isEmpty()) {
+            return FORMATO_INVALIDO;
+        }
+        int barra1 = data.indexOf('/');
+        int barra2 = barra1 < 0 ? -1 : data.indexOf('/', barra1 + 1);
+        if (barra2 < 0 || barra2 >= fim || data.indexOf('/', barra2 + 1) < fim && data.indexOf('/', barra2 + 1) >= 0) {
+            return FORMATO_INVALIDO;
+        }
+        long dia = inteiro(data, 0, barra1);
+        long mes = inteiro(data, barra1 + 1, barra2);
+        long ano = inteiro(data, barra2 + 1, fim);
+        if (dia == VALOR_INVALIDO || mes == VALOR_INVALIDO || ano == VALOR_INVALIDO || dia <= 0) {
+            return VALOR_INVALIDO;
+        }
+        if (mes <= 0 || mes > 12) {
+            return FORMATO_INVALIDO;
+        }
+        // o SimpleDateFormat nao aceita o sinal de mais que o parseInt aceita
+        if (data.charAt(0) == '+' || data.charAt(barra1 + 1) == '+' || data.charAt(barra2 + 1) == '+') {
+            return VALOR_INVALIDO;
+        }
+        long resultado = dia((int) ano, (int) mes, (int) dia);
+        return resultado > ULTIMO_DIA ? VALOR_INVALIDO : resultado;
+    }
+
+    // Dias desde 1970 de dia/mes/ano, ou VALOR_INVALIDO se a data nao existe
+    static long dia(int ano, int mes, int dia) {
+        if (ano < 1 || mes < 1 || mes > 12 || dia < 1) {
+            return VALOR_INVALIDO;
+        }
+        boolean juliano = ano < 1582 || (ano == 1582 && (mes < 10 || (mes == 10 && dia < 15)));
+        if (juliano && ano == 1582 && mes == 10 && dia > 4) {
+            return VALOR_INVALIDO;
+        }
+        boolean bissexto = juliano ? ano % 4 == 0 : (ano % 4 == 0 && (ano % 100 != 0 || ano % 400 == 0));
+        if (dia > diasNoMes(mes, bissexto)) {
+            return VALOR_INVALIDO;
+        }
+        // contando o ano a partir de marco, fevereiro fica no fim e o dia extra nao atrapalha
+        long a = mes <= 2 ? ano - 1L : ano;
+        long m = mes <= 2 ? mes + 9 : mes - 3;
+        long diaDoAno = (153 * m + 2) / 5 + dia - 1;
+        if (juliano) {
+            long y = a + 4800;
+            return 365 * y + y / 4 + diaDoAno + 1 - 32_083 - DIA_JULIANO_1970;
+        }
+        long era = Math.floorDiv(a, 400);
+        long anoDaEra = a - era * 400;
+        long diaDaEra = anoDaEra * 365 + anoDaEra / 4 - anoDaEra / 100 + diaDoAno;
+        return era * 146_097 + diaDaEra - DIAS_ATE_1970;
+    }
+
+    // d/M/yyyy sem zeros a esquerda, no mesmo calendario de ler()
+    static String texto(long dia) {
+        long ano;
+        int mes;
+        int diaDoMes;
+        if (dia >= INICIO_GREGORIANO) {
+            long z = dia + DIAS_ATE_1970;
+            long era = Math.floorDiv(z, 146_097);
+            long diaDaEra = z - era * 146_097;
+            long anoDaEra = (diaDaEra - diaDaEra / 1460 + diaDaEra / 36_524 - diaDaEra / 146_096) / 365;
+            long diaDoAno = diaDaEra - (365 * anoDaEra + anoDaEra / 4 - anoDaEra / 100);
+            long m = (5 * diaDoAno + 2) / 153;
+            diaDoMes = (int) (diaDoAno - (153 * m + 2) / 5 + 1);
+            mes = (int) (m < 10 ? m + 3 : m - 9);
+            ano = anoDaEra + era * 400 + (mes <= 2 ? 1 : 0);
+        } else {
+            long c = dia + DIA_JULIANO_1970 + 32_082;
+            long d = (4 * c + 3) / 1461;
+            long e = c - 1461 * d / 4;
+            long m = (5 * e + 2) / 153;
+            diaDoMes = (int) (e - (153 * m + 2) / 5 + 1);
+            mes = (int) (m + 3 - 12 * (m / 10));
+            ano = d - 4800 + m / 10;
+        }
+        return new StringBuilder(10).append(diaDoMes).append('/').append(mes).append('/').append(ano).toString();
+    }
+
+    // Valor de Integer.parseInt sobre data[inicio, fim), ou VALOR_INVALIDO
+    private static long inteiro(String data, int inicio, int fim) {
+        if (inicio >= fim) {
+            return VALOR_INVALIDO;
+        }
+        boolean negativo = false;
+        char primeiro = data.charAt(inicio);
+        if (primeiro == '-' || primeiro == '+') {
+            negativo = primeiro == '-';
+            if (++inicio == fim) {
+                return VALOR_INVALIDO;
+            }
+        }
+        long valor = 0;
+        for (int i = inicio; i < fim; i++) {
+            int digito = Character.digit(data.charAt(i), 10);
+            if (digito < 0) {
+                return VALOR_INVALIDO;
+            }
+            valor = valor * 10 + digito;
+            if (valor > Integer.MAX_VALUE + 1L) {
+                return VALOR_INVALIDO;
+            }
+        }
+        if (negativo) {
+            valor = -valor;
+        }
+        return valor > Integer.MAX_VALUE ? VALOR_INVALIDO : valor;
+    }
+
+    private static int diasNoMes(int mes, boolean bissexto) {
+        switch (mes) {
+            case 2:
+                return bissexto ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+// Diario (write-ahead log): registros [tamanho][lsn][conteudo][crc] em segmentos numerados;
+// a cada REGISTROS_POR_CHECKPOINT registros um checkpoint em segundo plano substitui os anteriores
+final class Diario {
+    static final String PREFIXO_SEGMENTO = "empregados.diario.";
+    private static final long INTERVALO_SINCRONIZACAO_MS =
+            Math.max(0, Long.getLong("wepayu.diario.intervaloSincronizacaoMs", 20));
+    private static final int REGISTROS_POR_CHECKPOINT =
+            Math.max(1, Integer.getInteger("wepayu.diario.registrosPorCheckpoint", 5000));
+
+    interface Escritor {
+        void escrever(DataOutputStream out) throws IOException;
+    }
+
+    interface Leitor {
+        void ler(DataInputStream in) throws IOException;
+    }
+
+    // grava um checkpoint que cobre tudo ate 'lsn' no arquivo indicado
+    interface GravadorCheckpoint {
+        void gravar(File destino, long lsn) throws IOException;
+    }
+
+    // Threads separadas: fechar() espera o checkpoint segurando o monitor que a sincronizacao usa
+    private static final ExecutorService SINCRONIZACAO = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wepayu-diario-fsync");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService CHECKPOINTS = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wepayu-diario-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File checkpoint;
+    // leitor que ainda tem o checkpoint aberto; e fechado antes de o arquivo ser substituido ou apagado
+    private final AtomicReference<Closeable> checkpointAberto;
+    private FileChannel canal;
+    private int segmento;
+    private long lsn;
+    // ultimo lsn que um force ja levou ao disco
+    private long lsnEmDisco;
+    // registros sendo montados, que a sincronizacao espera para levar no mesmo force
+    private int escrevendo;
+    private boolean sincronizando;
+    private int registrosDesdeCheckpoint;
+    private IOException falha;
+    private Future<?> checkpointPendente;
+
+    private Diario(File checkpoint, Closeable checkpointAberto, int segmento, long lsn) {
+        this.checkpoint = checkpoint;
+        this.checkpointAberto = new AtomicReference<>(checkpointAberto);
+        this.segmento = segmento;
+        this.lsn = lsn;
+        this.lsnEmDisco = lsn;
+    }
+
+    // Reaplica os registros posteriores a lsnCheckpoint; um registro incompleto ou corrompido no
+    // final e descartado junto com tudo o que vem depois dele
+    static Diario abrir(File checkpoint, Closeable checkpointAberto, long lsnCheckpoint, Leitor leitor)
+            throws IOException {
+        List<Integer> segmentos = segmentosExistentes();
+        long ultimo = lsnCheckpoint;
+        int atual = segmentos.isEmpty() ? 1 : segmentos.get(0);
+        boolean corrompido = false;
+        for (int numero : segmentos) {
+            File arquivo = arquivoSegmento(numero);
+            if (corrompido) {
+                arquivo.delete();
+                continue;
+            }
+            atual = numero;
+            byte[] conteudo = Files.readAllBytes(arquivo.toPath());
+            ByteBuffer buffer = ByteBuffer.wrap(conteudo);
+            while (buffer.remaining() >= 4) {
+                int inicio = buffer.position();
+                int tamanho = buffer.getInt();
+                if (tamanho < 0 || buffer.remaining() < tamanho + 12) {
+                    buffer.position(inicio);
+                    break;
+                }
+                long lsnRegistro = buffer.getLong();
+                int dados = buffer.position();
+                buffer.position(dados + tamanho);
+                int crc = buffer.getInt();
+                if (crc != crc(conteudo, inicio + 4, tamanho + 8)) {
+                    buffer.position(inicio);
+                    break;
+                }
+                if (lsnRegistro > ultimo) {
+                    leitor.ler(new DataInputStream(new ByteArrayInputStream(conteudo, dados, tamanho)));
+                    ultimo = lsnRegistro;
+                }
+            }
+            if (buffer.position() < conteudo.length) {
+                corrompido = true;
+                try (FileChannel c = FileChannel.open(arquivo.toPath(), StandardOpenOption.WRITE)) {
+                    c.truncate(buffer.position());
+                }
+            }
+        }
+        Diario diario = new Diario(checkpoint, checkpointAberto, atual, ultimo);
+        diario.abrirSegmento();
+        return diario;
+    }
+
+    // Grava o registro sem esperar o disco e devolve o lsn dele; quem confirma o comando chama
+    // aguardarDisco depois de soltar o lock de escrita, para que varios registros saiam no mesmo force
+    long registrar(Escritor escritor) {
+        synchronized (this) {
+            verificarFalha();
+            escrevendo++;
+        }
+        long meuLsn;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(0);
+            escritor.escrever(out);
+            out.flush();
+            byte[] registro = bytes.toByteArray();
+            synchronized (this) {
+                meuLsn = lsn + 1;
+                ByteBuffer.wrap(registro).putLong(meuLsn);
+                ByteBuffer buffer = ByteBuffer.allocate(registro.length + 8);
+                buffer.putInt(registro.length - 8);
+                buffer.put(registro);
+                buffer.putInt(crc(registro, 0, registro.length));
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    canal.write(buffer);
+                }
+                lsn = meuLsn;
+                registrosDesdeCheckpoint++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao gravar o diario de alteracoes.", e);
+        } finally {
+            synchronized (this) {
+                escrevendo--;
+                notifyAll();
+            }
+        }
+        return meuLsn;
+    }
+
+    // Passa para um novo segmento e agenda o checkpoint quando ja ha registros suficientes
+    synchronized void checkpointSeNecessario(GravadorCheckpoint gravador) {
+        if (registrosDesdeCheckpoint < REGISTROS_POR_CHECKPOINT
+                || (checkpointPendente != null && !checkpointPendente.isDone())) {
+            return;
+        }
+        try {
+            canal.force(false);
+            canal.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao gravar o diario de alteracoes.", e);
+        }
+        lsnEmDisco = lsn;
+        int anterior = segmento;
+        long lsnCheckpoint = lsn;
+        segmento++;
+        abrirSegmentoOuFalhar();
+        registrosDesdeCheckpoint = 0;
+        checkpointPendente = CHECKPOINTS.submit(() -> {
+            gravarCheckpoint(checkpoint, gravador, lsnCheckpoint, checkpointAberto);
+            for (int numero : segmentosExistentes()) {
+                if (numero <= anterior) {
+                    arquivoSegmento(numero).delete();
+                }
+            }
+            return null;
+        });
+    }
+
+    // Grava em um arquivo temporario e so entao substitui o checkpoint, que nunca fica pela metade
+    static void gravarCheckpoint(File checkpoint, GravadorCheckpoint gravador, long lsn) throws IOException {
+        gravarCheckpoint(checkpoint, gravador, lsn, new AtomicReference<>());
+    }
+
+    private static void gravarCheckpoint(File checkpoint, GravadorCheckpoint gravador, long lsn,
+                                         AtomicReference<Closeable> aberto) throws IOException {
+        File temporario = new File(checkpoint.getPath() + ".tmp");
+        try {
+            gravador.gravar(temporario, lsn);
+            try (FileChannel c = FileChannel.open(temporario.toPath(), StandardOpenOption.WRITE)) {
+                c.force(true);
+            }
+            fecharCheckpointAberto(aberto);
+            Files.move(temporario.toPath(), checkpoint.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporario.delete();
+        }
+    }
+
+    // Fecha o diario garantindo que tudo o que foi registrado esta no disco. Um checkpoint que
+    // falhou so e relatado aqui: o diario que ele compactaria continua completo.
+    synchronized void fechar() {
+        Throwable falhaCheckpoint = aguardarCheckpoint();
+        if (canal.isOpen()) {
+            try {
+                canal.force(false);
+                canal.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Erro ao gravar o diario de alteracoes.", e);
+            }
+            lsnEmDisco = lsn;
+            notifyAll();
+            verificarFalha();
+        }
+        try {
+            fecharCheckpointAberto(checkpointAberto);
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler o arquivo de dados.", e);
+        }
+        if (falhaCheckpoint != null) {
+            throw new RuntimeException("Erro ao gravar o arquivo de dados.", falhaCheckpoint);
+        }
+    }
+
+    // Apaga o diario e o checkpoint; o banco volta ao estado inicial. Os lsn continuam crescendo,
+    // e um checkpoint que nao pode ser apagado interrompe tudo antes de o diario ser tocado.
+    synchronized void apagar() {
+        aguardarCheckpoint();
+        try {
+            fecharCheckpointAberto(checkpointAberto);
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler o arquivo de dados.", e);
+        }
+        if (checkpoint.exists() && !checkpoint.delete()) {
+            throw new RuntimeException("Erro ao apagar o arquivo de dados.");
+        }
+        try {
+            canal.close();
+        } catch (IOException e) {
+            // o arquivo sera apagado de qualquer forma
+        }
+        for (int numero : segmentosExistentes()) {
+            if (!arquivoSegmento(numero).delete()) {
+                throw new RuntimeException("Erro ao apagar o diario de alteracoes.");
+            }
+        }
+        segmento = 1;
+        lsnEmDisco = lsn;
+        registrosDesdeCheckpoint = 0;
+        falha = null;
+        abrirSegmentoOuFalhar();
+        notifyAll();
+    }
+
+    // So volta quando um force que cobre o lsn terminou
+    synchronized void aguardarDisco(long alvo) {
+        if (lsnEmDisco >= alvo) {
+            return;
+        }
+        if (INTERVALO_SINCRONIZACAO_MS == 0) {
+            sincronizarAte(alvo);
+        } else if (!sincronizando) {
+            sincronizando = true;
+            SINCRONIZACAO.execute(this::sincronizarEmGrupo);
+        }
+        boolean interrompido = false;
+        while (lsnEmDisco < alvo && falha == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrompido = true;
+            }
+        }
+        if (interrompido) {
+            Thread.currentThread().interrupt();
+        }
+        if (lsnEmDisco < alvo) {
+            verificarFalha();
+        }
+    }
+
+    private synchronized void sincronizarAte(long alvo) {
+        if (lsnEmDisco >= alvo) {
+            return;
+        }
+        try {
+            canal.force(false);
+            lsnEmDisco = lsn;
+        } catch (IOException e) {
+            falha = e;
+        }
+    }
+
+    // Um force por vez, fora do monitor, para que outros registros possam ser gravados enquanto ele
+    // roda; cada force cobre tudo o que ja estava gravado quando comecou
+    private void sincronizarEmGrupo() {
+        while (true) {
+            long alvo;
+            FileChannel atual;
+            synchronized (this) {
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INTERVALO_SINCRONIZACAO_MS);
+                long resta;
+                while (escrevendo > 0 && (resta = limite - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, resta);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (lsnEmDisco >= lsn || falha != null) {
+                    sincronizando = false;
+                    notifyAll();
+                    return;
+                }
+                alvo = lsn;
+                atual = canal;
+            }
+            IOException erro = null;
+            try {
+                atual.force(false);
+            } catch (IOException e) {
+                erro = e;
+            }
+            synchronized (this) {
+                // um canal fechado pela troca de segmento ou por fechar() ja foi forcado antes
+                if (erro != null && lsnEmDisco < alvo) {
+                    falha = erro;
+                } else {
+                    lsnEmDisco = Math.max(lsnEmDisco, alvo);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void verificarFalha() {
+        if (falha != null) {
+            throw new RuntimeException("Erro ao gravar o diario de alteracoes.", falha);
+        }
+    }
+
+    // devolve a falha do ultimo checkpoint, se houve
+    private Throwable aguardarCheckpoint() {
+        if (checkpointPendente == null) {
+            return null;
+        }
+        Throwable falhaCheckpoint = null;
+        try {
+            checkpointPendente.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            falhaCheckpoint = e.getCause();
+        }
+        checkpointPendente = null;
+        return falhaCheckpoint;
+    }
+
+    private static void fecharCheckpointAberto(AtomicReference<Closeable> aberto) throws IOException {
+        Closeable arquivo = aberto.getAndSet(null);
+        if (arquivo != null) {
+            arquivo.close();
+        }
+    }
+
+    private void abrirSegmento() throws IOException {
+        canal = FileChannel.open(arquivoSegmento(segmento).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void abrirSegmentoOuFalhar() {
+        try {
+            abrirSegmento();
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao gravar o diario de alteracoes.", e);
+        }
+    }
+
+    private static File arquivoSegmento(int numero) {
+        return new File(PREFIXO_SEGMENTO + numero);
+    }
+
+    private static List<Integer> segmentosExistentes() {
+        List<Integer> numeros = new ArrayList<>();
+        File[] arquivos = new File(".").listFiles();
+        if (arquivos != null) {
+            for (File f : arquivos) {
+                String nome = f.getName();
+                if (nome.startsWith(PREFIXO_SEGMENTO)) {
+                    try {
+                        numeros.add(Integer.parseInt(nome.substring(PREFIXO_SEGMENTO.length())));
+                    } catch (NumberFormatException e) {
+                        // nao e um segmento
+                    }
+                }
+            }
+        }
+        numeros.sort(null);
+        return numeros;
+    }
+
+    private static int crc(byte[] dados, int inicio, int tamanho) {
+        CRC32 crc = new CRC32();
+        crc.update(dados, inicio, tamanho);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,211 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+// Centavos num long, com os mesmos resultados das contas em BigDecimal. Estouros lancam
+// ArithmeticException, e a folha e refeita em BigDecimal (FolhaExata).
+final class Dinheiro {
+    private static final int ESCALA_MAXIMA = 4;
+    // abaixo disso dois decimais distintos com ESCALA_MAXIMA casas nao viram o mesmo double
+    private static final double LIMITE_ESCALADO = 1L << 37;
+    private static final long[] POTENCIAS_DE_DEZ = new long[19];
+    private static final int ESCALA_DAS_DIVISOES = 10;
+
+    static {
+        POTENCIAS_DE_DEZ[0] = 1;
+        for (int i = 1; i < POTENCIAS_DE_DEZ.length; i++) {
+            POTENCIAS_DE_DEZ[i] = POTENCIAS_DE_DEZ[i - 1] * 10;
+        }
+    }
+
+    private Dinheiro() {
+    }
+
+    // valor truncado para centavos
+    static long truncar(double valor) {
+        int escala = escala(valor);
+        if (escala < 0) {
+            return centavos(BigDecimal.valueOf(valor));
+        }
+        return reduzir(escalado(valor, escala), escala);
+    }
+
+    // valor * quantidade, truncado para centavos
+    static long multiplicar(double valor, long quantidade) {
+        int escala = escala(valor);
+        if (escala >= 0) {
+            long produto = escalado(valor, escala) * quantidade;
+            if (semEstouro(escalado(valor, escala), quantidade, produto)) {
+                return reduzir(produto, escala);
+            }
+        }
+        return centavos(BigDecimal.valueOf(valor).multiply(BigDecimal.valueOf(quantidade)));
+    }
+
+    // valor * fator, truncado para centavos
+    static long multiplicar(double valor, double fator) {
+        int escalaValor = escala(valor);
+        int escalaFator = escala(fator);
+        if (escalaValor >= 0 && escalaFator >= 0) {
+            long a = escalado(valor, escalaValor);
+            long b = escalado(fator, escalaFator);
+            long produto = a * b;
+            if (semEstouro(a, b, produto)) {
+                return reduzir(produto, escalaValor + escalaFator);
+            }
+        }
+        return centavos(BigDecimal.valueOf(valor).multiply(BigDecimal.valueOf(fator)));
+    }
+
+    // centavos * fator, truncado para centavos
+    static long multiplicar(long centavos, double fator) {
+        int escala = escala(fator);
+        if (escala >= 0) {
+            long b = escalado(fator, escala);
+            long produto = centavos * b;
+            if (semEstouro(centavos, b, produto)) {
+                return reduzir(produto, escala + 2);
+            }
+        }
+        return centavos(BigDecimal.valueOf(centavos, 2).multiply(BigDecimal.valueOf(fator)));
+    }
+
+    // (valor * numerador / denominador) * fator, truncado para centavos, com a divisao arredondada
+    // como na folha; e o calculo da hora extra
+    static long multiplicar(double valor, long numerador, long denominador, double fator) {
+        int escalaValor = escala(valor);
+        int escalaFator = escala(fator);
+        if (escalaValor >= 0 && escalaFator >= 0) {
+            long a = escalado(valor, escalaValor);
+            long b = escalado(fator, escalaFator);
+            long base = a * numerador;
+            if (semEstouro(a, numerador, base)) {
+                // a divisao so e exata se couber em ESCALA_DAS_DIVISOES casas
+                for (int casas = 0; escalaValor + casas <= ESCALA_DAS_DIVISOES; casas++) {
+                    long dividendo = base * POTENCIAS_DE_DEZ[casas];
+                    if (!semEstouro(base, POTENCIAS_DE_DEZ[casas], dividendo)) {
+                        break;
+                    }
+                    if (dividendo % denominador == 0) {
+                        long quociente = dividendo / denominador;
+                        long produto = quociente * b;
+                        if (!semEstouro(quociente, b, produto)) {
+                            break;
+                        }
+                        return reduzir(produto, escalaValor + casas + escalaFator);
+                    }
+                }
+            }
+        }
+        BigDecimal quociente = BigDecimal.valueOf(valor).multiply(BigDecimal.valueOf(numerador))
+                .divide(BigDecimal.valueOf(denominador), ESCALA_DAS_DIVISOES, RoundingMode.HALF_UP);
+        return centavos(quociente.multiply(BigDecimal.valueOf(fator)));
+    }
+
+    // valor * numerador / denominador, truncado para centavos, com a divisao arredondada como na
+    // folha; e o calculo do salario semanal
+    static long dividir(double valor, long numerador, long denominador) {
+        int escala = escala(valor);
+        // o arredondamento na decima casa so muda os centavos se o quociente estiver a menos de
+        // meio 1e-10 de um centavo, o que nao acontece com denominadores pequenos
+        if (escala >= 0 && denominador > 0 && denominador * POTENCIAS_DE_DEZ[escala] < 200_000_000L) {
+            long a = escalado(valor, escala);
+            long base = a * numerador;
+            if (semEstouro(a, numerador, base)) {
+                if (escala <= 2) {
+                    long centavos = base * POTENCIAS_DE_DEZ[2 - escala];
+                    if (semEstouro(base, POTENCIAS_DE_DEZ[2 - escala], centavos)) {
+                        return centavos / denominador;
+                    }
+                } else {
+                    return base / (denominador * POTENCIAS_DE_DEZ[escala - 2]);
+                }
+            }
+        }
+        return centavos(BigDecimal.valueOf(valor).multiply(BigDecimal.valueOf(numerador))
+                .divide(BigDecimal.valueOf(denominador), ESCALA_DAS_DIVISOES, RoundingMode.HALF_UP));
+    }
+
+    // se o valor tem no maximo duas casas decimais, isto e, se truncar() nao perde nada
+    static boolean emCentavos(double valor) {
+        int escala = escala(valor);
+        return escala >= 0 && escala <= 2;
+    }
+
+    static long somar(long a, long b) {
+        long soma = a + b;
+        if (((a ^ soma) & (b ^ soma)) < 0) {
+            throw foraDoLimite();
+        }
+        return soma;
+    }
+
+    // como String.format("%.2f") com virgula, que a folha usava
+    static String formatar(long centavos) {
+        if (centavos >= 1L << 50 || centavos <= -(1L << 50)) {
+            // o double ja nao representa todos os centavos; mantem o que o formato dava
+            return String.format("%.2f", BigDecimal.valueOf(centavos, 2).doubleValue()).replace('.', ',');
+        }
+        long absoluto = Math.abs(centavos);
+        StringBuilder sb = new StringBuilder(24);
+        if (centavos < 0) {
+            sb.append('-');
+        }
+        long resto = absoluto % 100;
+        return sb.append(absoluto / 100).append(',').append((char) ('0' + resto / 10))
+                .append((char) ('0' + resto % 10)).toString();
+    }
+
+    static String formatar(BigDecimal valor) {
+        return String.format("%.2f", valor.doubleValue()).replace('.', ',');
+    }
+
+    // Casas decimais do texto de Double.toString(valor) (o que BigDecimal.valueOf usa), se forem
+    // no maximo ESCALA_MAXIMA; -1 caso contrario, inclusive NaN e infinitos
+    private static int escala(double valor) {
+        if (!(Math.abs(valor) < LIMITE_ESCALADO)) {
+            return -1;
+        }
+        for (int escala = 0; escala <= ESCALA_MAXIMA; escala++) {
+            double potencia = POTENCIAS_DE_DEZ[escala];
+            if (Math.rint(valor * potencia) / potencia == valor) {
+                return escala;
+            }
+        }
+        return -1;
+    }
+
+    private static long escalado(double valor, int escala) {
+        return (long) Math.rint(valor * POTENCIAS_DE_DEZ[escala]);
+    }
+
+    // inteiro com 'escala' casas decimais truncado para centavos
+    private static long reduzir(long valor, int escala) {
+        if (escala >= 2) {
+            return valor / POTENCIAS_DE_DEZ[escala - 2];
+        }
+        long centavos = valor * POTENCIAS_DE_DEZ[2 - escala];
+        if (!semEstouro(valor, POTENCIAS_DE_DEZ[2 - escala], centavos)) {
+            throw foraDoLimite();
+        }
+        return centavos;
+    }
+
+    private static boolean semEstouro(long a, long b, long produto) {
+        return Math.multiplyHigh(a, b) == (produto >> 63);
+    }
+
+    private static long centavos(BigDecimal valor) {
+        BigInteger centavos = valor.setScale(2, RoundingMode.DOWN).unscaledValue();
+        if (centavos.bitLength() > 63) {
+            throw foraDoLimite();
+        }
+        return centavos.longValue();
+    }
+
+    private static ArithmeticException foraDoLimite() {
+        return new ArithmeticException("Valor fora do limite.");
+    }
+}
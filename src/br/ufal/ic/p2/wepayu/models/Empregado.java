@@ -2,10 +2,12 @@ package br.ufal.ic.p2.wepayu.models;
 
 import java.io.Serializable;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
 
+// Um Empregado publicado no banco nunca e alterado: as alteracoes sao feitas sobre uma copia
+// (copiar()) que depois substitui a versao anterior. Assim as versoes guardadas pelo undo
+// continuam validas sem precisar de copias profundas.
 public class Empregado implements Serializable {
+    private static final long serialVersionUID = -8064946509156156209L;
     private static int contadorId = 1;
     private String id;
     private String nome;
@@ -21,9 +23,20 @@ public class Empregado implements Serializable {
     private String agencia;
     private String contaCorrente;
     private String agendaPagamento;
-    private List<CartaoPonto> cartoes = new ArrayList<>();
-    private List<Venda> vendas = new ArrayList<>();
-    private List<TaxaServico> taxas = new ArrayList<>();
+    // agendaPagamento ja interpretada; resolvida na primeira consulta (ver getAgenda)
+    private transient AgendaPagamento agenda;
+    // sempre Series (ver serieDeCartoes); declarados como List por causa dos arquivos antigos
+    private List<CartaoPonto> cartoes;
+    private List<Venda> vendas;
+    private List<TaxaServico> taxas;
+    // historicos que ainda estao no checkpoint; os campos acima so valem depois de carrega-los
+    private transient volatile HistoricosAdiados adiados;
+
+    // Fonte dos historicos de um empregado lido sem eles (ver FormatoBinario). carregar deve
+    // chamar definirHistoricos no destino, sempre com as mesmas series.
+    interface HistoricosAdiados {
+        void carregar(Empregado destino);
+    }
 
     public Empregado(String nome, String endereco, String tipo, String salarioStr, String comissaoStr) {
         if (nome == null || nome.trim().isEmpty()) {
@@ -73,7 +86,8 @@ public class Empregado implements Serializable {
             this.comissao = null;
         }
 
-        this.id = "EMP" + contadorId++;
+        this.id = "EMP" + reservarId();
+        definirHistoricos(null, null, null);
         this.nome = nome;
         this.endereco = endereco;
         this.tipo = tipo.toLowerCase();
@@ -99,67 +113,153 @@ public class Empregado implements Serializable {
         }
     }
 
+    private Empregado(Empregado outro) {
+        this.id = outro.id;
+        this.nome = outro.nome;
+        this.endereco = outro.endereco;
+        this.tipo = outro.tipo;
+        this.salario = outro.salario;
+        this.comissao = outro.comissao;
+        this.sindicalizado = outro.sindicalizado;
+        this.idSindicato = outro.idSindicato;
+        this.taxaSindical = outro.taxaSindical;
+        this.metodoPagamento = outro.metodoPagamento;
+        this.banco = outro.banco;
+        this.agencia = outro.agencia;
+        this.contaCorrente = outro.contaCorrente;
+        this.agendaPagamento = outro.agendaPagamento;
+        this.agenda = outro.agenda;
+        // le 'adiados' antes dos historicos: se ja for null, eles estao preenchidos
+        this.adiados = outro.adiados;
+        this.cartoes = outro.cartoes;
+        this.vendas = outro.vendas;
+        this.taxas = outro.taxas;
+    }
+
+    // registro vazio, preenchido por quem rele uma versao gravada (ver Codificador)
+    Empregado(String id) {
+        this.id = id;
+        definirHistoricos(null, null, null);
+    }
+
+    // copia rasa: os historicos sao series persistentes e podem ser compartilhados
+    Empregado copiar() {
+        return new Empregado(this);
+    }
+
     // ---- cartões ----
-    public void adicionarCartao(CartaoPonto c) {
-        cartoes.add(c);
+    void adicionarCartao(CartaoPonto c) {
+        cartoes = serieDeCartoes().com(c);
     }
 
     public List<CartaoPonto> getCartoes() {
-        return Collections.unmodifiableList(cartoes);
+        return serieDeCartoes();
     }
 
     // ---- vendas ----
-    public void adicionarVenda(Venda v) {
-        vendas.add(v);
+    void adicionarVenda(Venda v) {
+        vendas = serieDeVendas().com(v);
     }
 
     public List<Venda> getVendas() {
-        return Collections.unmodifiableList(vendas);
+        return serieDeVendas();
     }
 
     // ---- taxas de servico ----
-    public void adicionarTaxa(TaxaServico t) {
-        taxas.add(t);
+    void adicionarTaxa(TaxaServico t) {
+        taxas = serieDeTaxas().com(t);
     }
 
     public List<TaxaServico> getTaxas() {
-        return Collections.unmodifiableList(taxas);
-    }
-
-    public void setSindicalizado(boolean valor) { this.sindicalizado = valor; }
-    public void setIdSindicato(String id) { this.idSindicato = id; }
-    public void setTaxaSindical(double taxa) { this.taxaSindical = taxa; }
-    public void setMetodoPagamento(String metodoPagamento) { this.metodoPagamento = metodoPagamento; }
-    public void setBanco(String banco) { this.banco = banco; }
-    public void setAgencia(String agencia) { this.agencia = agencia; }
-    public void setContaCorrente(String contaCorrente) { this.contaCorrente = contaCorrente; }
-    public void setAgendaPagamento(String agendaPagamento) { this.agendaPagamento = agendaPagamento; }
-    public void setNome(String nome) {
+        return serieDeTaxas();
+    }
+
+    // as consultas da folha percorrem as series direto, sem montar os lancamentos
+    Serie<CartaoPonto> serieDeCartoes() {
+        carregarHistoricos();
+        return (Serie<CartaoPonto>) cartoes;
+    }
+
+    Serie<Venda> serieDeVendas() {
+        carregarHistoricos();
+        return (Serie<Venda>) vendas;
+    }
+
+    Serie<TaxaServico> serieDeTaxas() {
+        carregarHistoricos();
+        return (Serie<TaxaServico>) taxas;
+    }
+
+    void definirHistoricos(List<CartaoPonto> cartoes, List<Venda> vendas, List<TaxaServico> taxas) {
+        this.cartoes = Serie.de(TipoLancamento.CARTOES, id, cartoes);
+        this.vendas = Serie.de(TipoLancamento.VENDAS, id, vendas);
+        this.taxas = Serie.de(TipoLancamento.TAXAS, id, taxas);
+        this.adiados = null;
+    }
+
+    void adiarHistoricos(HistoricosAdiados adiados) {
+        this.adiados = adiados;
+    }
+
+    // null quando os historicos ja estao em memoria
+    HistoricosAdiados historicosAdiados() {
+        return adiados;
+    }
+
+    private void carregarHistoricos() {
+        HistoricosAdiados pendentes = adiados;
+        if (pendentes != null) {
+            pendentes.carregar(this);
+        }
+    }
+
+    void setSindicalizado(boolean valor) { this.sindicalizado = valor; }
+    void setIdSindicato(String id) { this.idSindicato = id; }
+    void setTaxaSindical(double taxa) { this.taxaSindical = taxa; }
+    void setMetodoPagamento(String metodoPagamento) { this.metodoPagamento = metodoPagamento; }
+    void setBanco(String banco) { this.banco = banco; }
+    void setAgencia(String agencia) { this.agencia = agencia; }
+    void setContaCorrente(String contaCorrente) { this.contaCorrente = contaCorrente; }
+    void setAgendaPagamento(String agendaPagamento) {
+        this.agendaPagamento = agendaPagamento;
+        this.agenda = null;
+    }
+    void setAgenda(AgendaPagamento agenda) {
+        this.agendaPagamento = agenda.getDescricao();
+        this.agenda = agenda;
+    }
+    void setNome(String nome) {
         if (nome == null || nome.trim().isEmpty()) {
             throw new IllegalArgumentException("Nome nao pode ser nulo.");
         }
         this.nome = nome;
     }
 
-    public void setEndereco(String endereco) {
+    void setEndereco(String endereco) {
         if (endereco == null || endereco.trim().isEmpty()) {
             throw new IllegalArgumentException("Endereco nao pode ser nulo.");
         }
         this.endereco = endereco;
     }
 
-    public void setTipo(String tipo) {
+    void setTipo(String tipo) {
         this.tipo = tipo.toLowerCase();
     }
 
-    public void setSalario(double salario) {
+    void setSalario(double salario) {
         this.salario = salario;
     }
 
-    public void setComissao(Double comissao) {
+    void setComissao(Double comissao) {
         this.comissao = comissao;
     }
 
+    // arquivos antigos guardam os historicos como ArrayList
+    private Object readResolve() {
+        definirHistoricos(cartoes, vendas, taxas);
+        return this;
+    }
+
     // ---- getters ----
     public String getId() { return id; }
     public String getNome() { return nome; }
@@ -176,15 +276,29 @@ public class Empregado implements Serializable {
     public String getContaCorrente() { return contaCorrente; }
     public String getAgendaPagamento() { return agendaPagamento; }
 
-    public static void resetContador() {
+    // null se a descricao nao e de uma agenda valida
+    AgendaPagamento getAgenda() {
+        AgendaPagamento atual = agenda;
+        if (atual == null && agendaPagamento != null) {
+            atual = AgendaPagamento.interpretar(agendaPagamento);
+            agenda = atual;
+        }
+        return atual;
+    }
+
+    private static synchronized int reservarId() {
+        return contadorId++;
+    }
+
+    public static synchronized void resetContador() {
         contadorId = 1;
     }
 
-    public static int getProximoId() {
+    public static synchronized int getProximoId() {
         return contadorId;
     }
 
-    public static void definirProximoId(int valor) {
+    public static synchronized void definirProximoId(int valor) {
         contadorId = valor;
     }
 }
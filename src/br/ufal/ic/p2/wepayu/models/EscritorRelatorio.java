@@ -0,0 +1,162 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// Relatorio de colunas fixas escrito direto num canal, com buffers de tamanho fixo: a memoria
+// nao cresce com o relatorio. As colunas sao posicoes (em chars) na linha atual, como na folha;
+// numeros e dinheiro sao escritos digito a digito, sem montar Strings. Os bytes saem no charset
+// padrao e com '?' no lugar do que ele nao representa, como o FileWriter gravava.
+final class EscritorRelatorio implements Closeable {
+    private static final int TAMANHO_BUFFER = 1 << 16;
+
+    private final WritableByteChannel canal;
+    private final CharsetEncoder codificador = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer caracteres = CharBuffer.allocate(TAMANHO_BUFFER);
+    private final ByteBuffer bytes = ByteBuffer.allocate(TAMANHO_BUFFER);
+    // digitos de um numero, do fim para o comeco
+    private final char[] digitos = new char[20];
+    // chars ja escritos na linha atual
+    private int coluna;
+
+    EscritorRelatorio(WritableByteChannel canal) {
+        this.canal = canal;
+    }
+
+    EscritorRelatorio texto(String texto) throws IOException {
+        int escritos = 0;
+        while (escritos < texto.length()) {
+            if (!caracteres.hasRemaining()) {
+                codificar(false);
+            }
+            int ate = Math.min(texto.length(), escritos + caracteres.remaining());
+            caracteres.put(texto, escritos, ate);
+            escritos = ate;
+        }
+        coluna += texto.length();
+        return this;
+    }
+
+    EscritorRelatorio novaLinha() throws IOException {
+        caractere('\n');
+        coluna = 0;
+        return this;
+    }
+
+    // espacos ate a linha ter 'inicio' chars
+    EscritorRelatorio coluna(int inicio) throws IOException {
+        while (coluna < inicio) {
+            caractere(' ');
+        }
+        return this;
+    }
+
+    // texto alinhado a direita, terminando na coluna 'fimInclusivo' (ou logo apos a linha, se ja passou)
+    EscritorRelatorio aDireita(String texto, int fimInclusivo) throws IOException {
+        coluna(fimInclusivo - texto.length() + 1);
+        return texto(texto);
+    }
+
+    // como aDireita(String.valueOf(valor))
+    EscritorRelatorio aDireita(long valor, int fimInclusivo) throws IOException {
+        if (valor == Long.MIN_VALUE) {
+            return aDireita(String.valueOf(valor), fimInclusivo);
+        }
+        int quantos = 0;
+        long resto = Math.abs(valor);
+        do {
+            digitos[quantos++] = (char) ('0' + resto % 10);
+            resto /= 10;
+        } while (resto > 0);
+        coluna(fimInclusivo - quantos - (valor < 0 ? 1 : 0) + 1);
+        if (valor < 0) {
+            caractere('-');
+        }
+        while (quantos > 0) {
+            caractere(digitos[--quantos]);
+        }
+        return this;
+    }
+
+    // como aDireita(Dinheiro.formatar(centavos))
+    EscritorRelatorio dinheiroADireita(long centavos, int fimInclusivo) throws IOException {
+        if (centavos >= 1L << 50 || centavos <= -(1L << 50)) {
+            return aDireita(Dinheiro.formatar(centavos), fimInclusivo);
+        }
+        long absoluto = Math.abs(centavos);
+        int quantos = 0;
+        digitos[quantos++] = (char) ('0' + absoluto % 10);
+        digitos[quantos++] = (char) ('0' + absoluto / 10 % 10);
+        digitos[quantos++] = ',';
+        long reais = absoluto / 100;
+        do {
+            digitos[quantos++] = (char) ('0' + reais % 10);
+            reais /= 10;
+        } while (reais > 0);
+        coluna(fimInclusivo - quantos - (centavos < 0 ? 1 : 0) + 1);
+        if (centavos < 0) {
+            caractere('-');
+        }
+        while (quantos > 0) {
+            caractere(digitos[--quantos]);
+        }
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            codificar(true);
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                canal.write(bytes);
+            }
+        } finally {
+            canal.close();
+        }
+    }
+
+    private void caractere(char c) throws IOException {
+        if (!caracteres.hasRemaining()) {
+            codificar(false);
+        }
+        caracteres.put(c);
+        coluna++;
+    }
+
+    // Passa os chars do buffer para bytes, gravando no canal sempre que o buffer de bytes enche. Um
+    // surrogate alto no fim fica para a proxima vez, a nao ser no final do relatorio.
+    private void codificar(boolean fim) throws IOException {
+        caracteres.flip();
+        CoderResult resultado;
+        while ((resultado = codificador.encode(caracteres, bytes, fim)).isOverflow()) {
+            gravarBytes();
+        }
+        if (resultado.isError()) {
+            resultado.throwException();
+        }
+        caracteres.compact();
+        if (fim) {
+            while (codificador.flush(bytes).isOverflow()) {
+                gravarBytes();
+            }
+        }
+    }
+
+    private void gravarBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            canal.write(bytes);
+        }
+        bytes.clear();
+    }
+}
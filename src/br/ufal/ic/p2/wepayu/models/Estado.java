@@ -0,0 +1,289 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Estado completo do sistema em um dado momento. E imutavel: cada comando produz um novo Estado
+// que compartilha com o anterior tudo o que nao mudou, entao um snapshot e so uma referencia.
+final class Estado {
+    static final Estado VAZIO = new Estado(MapaPersistente.vazio(), MapaPersistente.vazio(), MapaPersistente.vazio(),
+            MapaPersistente.vazio(), MapaPersistente.vazio(), MapaPersistente.vazio());
+    private static final String[] NENHUM = new String[0];
+
+    private final MapaPersistente<String, Empregado> empregados;
+    // idSindicato -> id do empregado sindicalizado, mantido junto com 'empregados'
+    private final MapaPersistente<String, String> membros;
+    // nome normalizado (ver chaveDoNome) -> ids dos empregados com esse nome, em ordem de criacao
+    private final MapaPersistente<String, String[]> porNome;
+    // tipo -> agenda de pagamento -> empregados em ordem de nome, a ordem em que a folha os lista
+    private final MapaPersistente<String, MapaPersistente<String, RolPorNome>> porTipo;
+    // chave em minusculas -> agenda (a instancia unica de AgendaPagamento para a descricao)
+    private final MapaPersistente<String, AgendaPagamento> agendasDisponiveis;
+    private final MapaPersistente<String, String> agendasPersonalizadas;
+
+    private Estado(MapaPersistente<String, Empregado> empregados,
+                   MapaPersistente<String, String> membros,
+                   MapaPersistente<String, String[]> porNome,
+                   MapaPersistente<String, MapaPersistente<String, RolPorNome>> porTipo,
+                   MapaPersistente<String, AgendaPagamento> agendasDisponiveis,
+                   MapaPersistente<String, String> agendasPersonalizadas) {
+        this.empregados = empregados;
+        this.membros = membros;
+        this.porNome = porNome;
+        this.porTipo = porTipo;
+        this.agendasDisponiveis = agendasDisponiveis;
+        this.agendasPersonalizadas = agendasPersonalizadas;
+    }
+
+    Empregado getEmpregado(String id) {
+        return empregados.get(id);
+    }
+
+    boolean contemEmpregado(String id) {
+        return empregados.contem(id);
+    }
+
+    int getNumeroDeEmpregados() {
+        return empregados.tamanho();
+    }
+
+    Collection<Empregado> getEmpregados() {
+        return empregados.valores();
+    }
+
+    // empregado sindicalizado com esta identificacao no sindicato, ou null
+    Empregado getMembro(String idSindicato) {
+        String id = membros.get(idSindicato);
+        return id == null ? null : empregados.get(id);
+    }
+
+    // ids dos empregados cujo nome e igual a 'nome' ignorando maiusculas, em ordem de criacao
+    String[] getIdsPorNome(String nome) {
+        String[] ids = porNome.get(chaveDoNome(nome));
+        return ids == null ? NENHUM : ids;
+    }
+
+    // Empregados do tipo cuja agenda de pagamento (a descricao guardada no empregado) e aceita, em
+    // ordem de nome (sem diferenciar maiusculas) e, no mesmo nome, de criacao. So os grupos das
+    // agendas aceitas sao percorridos.
+    List<Empregado> getEmpregadosDoTipo(String tipo, Predicate<String> agendas) {
+        MapaPersistente<String, RolPorNome> porAgenda = porTipo.get(tipo);
+        List<RolPorNome> rois = new ArrayList<>();
+        if (porAgenda != null) {
+            for (String agenda : porAgenda.chaves()) {
+                if (agendas.test(agenda)) {
+                    rois.add(porAgenda.get(agenda));
+                }
+            }
+        }
+        if (rois.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> ids = RolPorNome.intercalar(rois);
+        List<Empregado> doTipo = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            doTipo.add(empregados.get(id));
+        }
+        return doTipo;
+    }
+
+    // Os mesmos empregados de getEmpregadosDoTipo, sem montar a lista: cada grupo de agenda aceita
+    // e visitado em ordem de nome, mas os grupos nao sao intercalados
+    void paraCadaEmpregadoDoTipo(String tipo, Predicate<String> agendas, Consumer<Empregado> acao) {
+        MapaPersistente<String, RolPorNome> porAgenda = porTipo.get(tipo);
+        if (porAgenda == null) {
+            return;
+        }
+        for (String agenda : porAgenda.chaves()) {
+            if (agendas.test(agenda)) {
+                porAgenda.get(agenda).paraCada(id -> acao.accept(empregados.get(id)));
+            }
+        }
+    }
+
+    Estado comEmpregado(Empregado empregado) {
+        Empregado anterior = empregados.get(empregado.getId());
+        MapaPersistente<String, String> novosMembros = semMembro(anterior);
+        if (empregado.isSindicalizado() && empregado.getIdSindicato() != null) {
+            novosMembros = novosMembros.com(empregado.getIdSindicato(), empregado.getId());
+        }
+        MapaPersistente<String, String[]> novosPorNome = porNome;
+        String chave = chaveDoNome(empregado.getNome());
+        if (anterior == null || !chaveDoNome(anterior.getNome()).equals(chave)) {
+            novosPorNome = comNome(semNome(porNome, anterior), chave, empregado.getId());
+        }
+        MapaPersistente<String, MapaPersistente<String, RolPorNome>> novosPorTipo = porTipo;
+        if (anterior == null || !Objects.equals(anterior.getNome(), empregado.getNome())
+                || !Objects.equals(anterior.getTipo(), empregado.getTipo())
+                || !Objects.equals(anterior.getAgendaPagamento(), empregado.getAgendaPagamento())) {
+            novosPorTipo = comTipo(semTipo(porTipo, anterior), empregado);
+        }
+        return new Estado(empregados.com(empregado.getId(), empregado), novosMembros, novosPorNome, novosPorTipo,
+                agendasDisponiveis, agendasPersonalizadas);
+    }
+
+    Estado semEmpregado(String id) {
+        Empregado anterior = empregados.get(id);
+        return new Estado(empregados.sem(id), semMembro(anterior), semNome(porNome, anterior),
+                semTipo(porTipo, anterior), agendasDisponiveis, agendasPersonalizadas);
+    }
+
+    Estado semEmpregados() {
+        return new Estado(MapaPersistente.vazio(), MapaPersistente.vazio(), MapaPersistente.vazio(),
+                MapaPersistente.vazio(), agendasDisponiveis, agendasPersonalizadas);
+    }
+
+    // membros sem a entrada do empregado, se ela for dele
+    private MapaPersistente<String, String> semMembro(Empregado empregado) {
+        if (empregado == null || empregado.getIdSindicato() == null
+                || !empregado.getId().equals(membros.get(empregado.getIdSindicato()))) {
+            return membros;
+        }
+        return membros.sem(empregado.getIdSindicato());
+    }
+
+    private static MapaPersistente<String, String[]> comNome(MapaPersistente<String, String[]> porNome, String chave,
+                                                             String id) {
+        String[] ids = porNome.get(chave);
+        if (ids == null) {
+            return porNome.com(chave, new String[]{id});
+        }
+        int lugar = 0;
+        while (lugar < ids.length && compararCriacao(ids[lugar], id) < 0) {
+            lugar++;
+        }
+        String[] novos = new String[ids.length + 1];
+        System.arraycopy(ids, 0, novos, 0, lugar);
+        novos[lugar] = id;
+        System.arraycopy(ids, lugar, novos, lugar + 1, ids.length - lugar);
+        return porNome.com(chave, novos);
+    }
+
+    private static MapaPersistente<String, String[]> semNome(MapaPersistente<String, String[]> porNome,
+                                                             Empregado empregado) {
+        if (empregado == null) {
+            return porNome;
+        }
+        String chave = chaveDoNome(empregado.getNome());
+        String[] ids = porNome.get(chave);
+        int lugar = ids == null ? -1 : Arrays.asList(ids).indexOf(empregado.getId());
+        if (lugar < 0) {
+            return porNome;
+        }
+        if (ids.length == 1) {
+            return porNome.sem(chave);
+        }
+        String[] novos = new String[ids.length - 1];
+        System.arraycopy(ids, 0, novos, 0, lugar);
+        System.arraycopy(ids, lugar + 1, novos, lugar, novos.length - lugar);
+        return porNome.com(chave, novos);
+    }
+
+    private static MapaPersistente<String, MapaPersistente<String, RolPorNome>> comTipo(
+            MapaPersistente<String, MapaPersistente<String, RolPorNome>> porTipo, Empregado empregado) {
+        if (empregado.getTipo() == null) {
+            return porTipo;
+        }
+        MapaPersistente<String, RolPorNome> porAgenda = porTipo.get(empregado.getTipo());
+        if (porAgenda == null) {
+            porAgenda = MapaPersistente.vazio();
+        }
+        String agenda = agendaDoGrupo(empregado);
+        RolPorNome rol = porAgenda.get(agenda);
+        if (rol == null) {
+            rol = RolPorNome.VAZIO;
+        }
+        rol = rol.com(empregado.getNome(), empregado.getId());
+        return porTipo.com(empregado.getTipo(), porAgenda.com(agenda, rol));
+    }
+
+    private static MapaPersistente<String, MapaPersistente<String, RolPorNome>> semTipo(
+            MapaPersistente<String, MapaPersistente<String, RolPorNome>> porTipo, Empregado empregado) {
+        if (empregado == null || empregado.getTipo() == null) {
+            return porTipo;
+        }
+        MapaPersistente<String, RolPorNome> porAgenda = porTipo.get(empregado.getTipo());
+        String agenda = agendaDoGrupo(empregado);
+        if (porAgenda == null || !porAgenda.contem(agenda)) {
+            return porTipo;
+        }
+        RolPorNome rol = porAgenda.get(agenda).sem(empregado.getNome(), empregado.getId());
+        porAgenda = rol.tamanho() == 0 ? porAgenda.sem(agenda) : porAgenda.com(agenda, rol);
+        return porAgenda.isEmpty() ? porTipo.sem(empregado.getTipo()) : porTipo.com(empregado.getTipo(), porAgenda);
+    }
+
+    private static String agendaDoGrupo(Empregado empregado) {
+        return empregado.getAgendaPagamento() == null ? "" : empregado.getAgendaPagamento();
+    }
+
+    // Nomes iguais por equalsIgnoreCase tem a mesma chave: ele compara cada caractere em
+    // maiusculas e depois em minusculas
+    private static String chaveDoNome(String nome) {
+        if (nome == null) {
+            return "";
+        }
+        StringBuilder chave = new StringBuilder(nome.length());
+        for (int i = 0; i < nome.length(); ) {
+            int c = nome.codePointAt(i);
+            chave.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c)));
+            i += Character.charCount(c);
+        }
+        return chave.toString();
+    }
+
+    // ordem de criacao pelo numero de EMPn; ids fora desse padrao vem depois, em ordem alfabetica
+    static int compararCriacao(String a, String b) {
+        int porNumero = Long.compare(numeroDoId(a), numeroDoId(b));
+        return porNumero != 0 ? porNumero : a.compareTo(b);
+    }
+
+    private static long numeroDoId(String id) {
+        try {
+            return Integer.parseInt(id.substring(3));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    void diferencasEmpregados(Estado outro, MapaPersistente.Diferenca<String, Empregado> visitante) {
+        empregados.diferencas(outro.empregados, visitante);
+    }
+
+    AgendaPagamento getAgenda(String chave) {
+        return agendasDisponiveis.get(chave);
+    }
+
+    Collection<AgendaPagamento> getAgendasDisponiveis() {
+        return agendasDisponiveis.valores();
+    }
+
+    boolean contemAgenda(String chave) {
+        return agendasDisponiveis.contem(chave);
+    }
+
+    Collection<String> getAgendasPersonalizadas() {
+        return agendasPersonalizadas.valores();
+    }
+
+    boolean mesmasAgendas(Estado outro) {
+        return agendasDisponiveis == outro.agendasDisponiveis && agendasPersonalizadas == outro.agendasPersonalizadas;
+    }
+
+    // empregados deste estado com as agendas de outro
+    Estado comAgendasDe(Estado outro) {
+        return new Estado(empregados, membros, porNome, porTipo, outro.agendasDisponiveis,
+                outro.agendasPersonalizadas);
+    }
+
+    Estado comAgenda(AgendaPagamento agenda, boolean personalizada) {
+        String descricao = agenda.getDescricao();
+        return new Estado(empregados, membros, porNome, porTipo,
+                agendasDisponiveis.com(agenda.getChave(), agenda),
+                personalizada ? agendasPersonalizadas.com(descricao, descricao) : agendasPersonalizadas);
+    }
+}
@@ -0,0 +1,537 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Formato do checkpoint (empregados.ser):
+//
+//   "WPU" versao lsn proximoId agendas* empregados*
+//   empregado = cadastro tamanhoDosHistoricos cartoes* vendas* taxas*
+//
+// Inteiros sao varints; textos do cadastro passam por um dicionario (a primeira ocorrencia grava
+// o texto, as seguintes so o indice); datas d/M/yyyy viram dias desde 1970 gravados como
+// diferenca para a data anterior da mesma lista; valores com ate duas casas viram centavos. O
+// que nao cabe nessas formas (datas com zeros a esquerda ou anteriores ao calendario gregoriano,
+// valores com mais casas) e gravado por extenso. So a versao 2 e lida; um empregados.ser da
+// serializacao do Java e convertido pelo Database.
+//
+// Os historicos de cada empregado vem precedidos do seu tamanho em bytes e nao usam o
+// dicionario, entao a carga le so os cadastros e pula os historicos: cada empregado guarda a
+// posicao dos seus no arquivo e os decodifica no primeiro acesso. O arquivo fica aberto
+// (ArquivoAberto) ate o proximo checkpoint, zerarSistema ou encerrarSistema, que copiam para a
+// memoria os historicos ainda nao lidos antes de fecha-lo.
+final class FormatoBinario {
+    private static final byte[] ASSINATURA = {'W', 'P', 'U'};
+    static final int VERSAO = 2;
+
+    private static final int TEXTO_NULO = 0;
+    private static final int TEXTO_NOVO = 1;
+
+    private static final int FLAG_COMISSAO = 1;
+    private static final int FLAG_SINDICALIZADO = 2;
+
+    private FormatoBinario() {
+    }
+
+    // Arquivos gravados pela serializacao padrao do Java comecam com 0xACED; 'in' volta ao inicio
+    static boolean ehSerializacaoJava(InputStream in) throws IOException {
+        in.mark(2);
+        boolean java = in.read() == 0xAC && in.read() == 0xED;
+        in.reset();
+        return java;
+    }
+
+    static void escrever(OutputStream destino, Estado estado, int proximoId, long lsn) throws IOException {
+        Escritor out = new Escritor(destino);
+        out.bytes(ASSINATURA);
+        out.varint(VERSAO);
+        out.varint(lsn);
+        out.varint(proximoId);
+        Collection<String> agendas = estado.getAgendasPersonalizadas();
+        out.varint(agendas.size());
+        for (String agenda : agendas) {
+            out.texto(agenda);
+        }
+        out.varint(estado.getNumeroDeEmpregados());
+        ByteArrayOutputStream bytesHistoricos = new ByteArrayOutputStream();
+        Escritor historicos = new Escritor(bytesHistoricos);
+        for (Empregado e : estado.getEmpregados()) {
+            escreverCadastro(out, e);
+            // historicos que ninguem leu desde a carga sao copiados como estao
+            Empregado.HistoricosAdiados adiados = e.historicosAdiados();
+            if (adiados instanceof HistoricosNoArquivo && ((HistoricosNoArquivo) adiados).copiarPara(out)) {
+                continue;
+            }
+            bytesHistoricos.reset();
+            escreverHistoricos(historicos, e);
+            historicos.flush();
+            out.varint(bytesHistoricos.size());
+            out.bytes(bytesHistoricos.toByteArray());
+        }
+        out.flush();
+    }
+
+    // O canal passa a pertencer ao ArquivoAberto do cabecalho, ou e fechado se a leitura falhar
+    static Cabecalho ler(FileChannel canal, Consumer<Empregado> empregados) throws IOException {
+        try {
+            return ler(new ArquivoAberto(canal), empregados);
+        } catch (IOException | RuntimeException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    private static Cabecalho ler(ArquivoAberto arquivo, Consumer<Empregado> empregados) throws IOException {
+        Leitor in = new Leitor(arquivo.canal);
+        for (byte esperado : ASSINATURA) {
+            if (in.byteSemSinal() != (esperado & 0xFF)) {
+                throw new IOException("Arquivo de dados invalido.");
+            }
+        }
+        int versao = (int) in.varint();
+        if (versao != VERSAO) {
+            throw new IOException("Versao do arquivo de dados nao suportada: " + versao);
+        }
+        long lsn = in.varint();
+        int proximoId = (int) in.varint();
+        List<String> agendas = new ArrayList<>();
+        for (long i = in.varint(); i > 0; i--) {
+            agendas.add(in.texto());
+        }
+        for (long i = in.varint(); i > 0; i--) {
+            Empregado e = lerCadastro(in);
+            int tamanho = in.tamanho();
+            e.adiarHistoricos(arquivo.adiar(in.posicao(), tamanho));
+            in.pular(tamanho);
+            empregados.accept(e);
+        }
+        return new Cabecalho(lsn, proximoId, agendas, arquivo);
+    }
+
+    static final class Cabecalho {
+        final long lsn;
+        final int proximoId;
+        final List<String> agendasPersonalizadas;
+        final ArquivoAberto arquivo;
+
+        private Cabecalho(long lsn, int proximoId, List<String> agendasPersonalizadas, ArquivoAberto arquivo) {
+            this.lsn = lsn;
+            this.proximoId = proximoId;
+            this.agendasPersonalizadas = agendasPersonalizadas;
+            this.arquivo = arquivo;
+        }
+    }
+
+    // Checkpoint de onde ainda ha historicos por ler. close() copia para a memoria os que faltam e
+    // fecha o canal; e chamado antes de o arquivo ser substituido ou apagado.
+    static final class ArquivoAberto implements Closeable {
+        private final FileChannel canal;
+        private final Set<HistoricosNoArquivo> pendentes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private ArquivoAberto(FileChannel canal) {
+            this.canal = canal;
+        }
+
+        private synchronized HistoricosNoArquivo adiar(long inicio, int tamanho) {
+            HistoricosNoArquivo h = new HistoricosNoArquivo(this, inicio, tamanho);
+            pendentes.add(h);
+            return h;
+        }
+
+        private synchronized ByteBuffer ler(HistoricosNoArquivo h) throws IOException {
+            if (h.copia != null) {
+                return ByteBuffer.wrap(h.copia);
+            }
+            ByteBuffer trecho = ByteBuffer.allocate(h.tamanho);
+            while (trecho.hasRemaining()) {
+                if (canal.read(trecho, h.inicio + trecho.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            trecho.flip();
+            return trecho;
+        }
+
+        private synchronized void lido(HistoricosNoArquivo h) {
+            pendentes.remove(h);
+            h.copia = null;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!canal.isOpen()) {
+                return;
+            }
+            try {
+                for (HistoricosNoArquivo h : pendentes) {
+                    h.copia = ler(h).array();
+                }
+            } finally {
+                canal.close();
+            }
+        }
+    }
+
+    private static void escreverCadastro(Escritor out, Empregado e) throws IOException {
+        out.texto(e.getId());
+        out.texto(e.getNome());
+        out.texto(e.getEndereco());
+        out.texto(e.getTipo());
+        int flags = (e.getComissao() != null ? FLAG_COMISSAO : 0) | (e.isSindicalizado() ? FLAG_SINDICALIZADO : 0);
+        out.varint(flags);
+        out.valor(e.getSalario());
+        if (e.getComissao() != null) {
+            out.valor(e.getComissao());
+        }
+        out.texto(e.getIdSindicato());
+        out.valor(e.getTaxaSindical());
+        out.texto(e.getMetodoPagamento());
+        out.texto(e.getBanco());
+        out.texto(e.getAgencia());
+        out.texto(e.getContaCorrente());
+        out.texto(e.getAgendaPagamento());
+    }
+
+    private static void escreverHistoricos(Escritor out, Empregado e) throws IOException {
+        escreverSerie(out, e.serieDeCartoes());
+        escreverSerie(out, e.serieDeVendas());
+        escreverSerie(out, e.serieDeTaxas());
+    }
+
+    private static void escreverSerie(Escritor out, Serie<?> serie) throws IOException {
+        out.varint(serie.size());
+        out.reiniciarDatas();
+        for (int i = 0; i < serie.size(); i++) {
+            int dia = serie.dia(i);
+            String texto = serie.dataPorExtenso(i);
+            if (texto == null && dia >= Datas.INICIO_GREGORIANO) {
+                out.dia(dia);
+            } else {
+                out.data(texto != null ? texto : Datas.texto(dia));
+            }
+            out.valor(serie.valor(i));
+        }
+    }
+
+    private static Empregado lerCadastro(Leitor in) throws IOException {
+        Empregado e = new Empregado(in.texto());
+        e.setNome(in.texto());
+        e.setEndereco(in.texto());
+        e.setTipo(in.texto());
+        int flags = (int) in.varint();
+        e.setSalario(in.valor());
+        e.setComissao((flags & FLAG_COMISSAO) != 0 ? in.valor() : null);
+        e.setSindicalizado((flags & FLAG_SINDICALIZADO) != 0);
+        e.setIdSindicato(in.texto());
+        e.setTaxaSindical(in.valor());
+        e.setMetodoPagamento(in.texto());
+        e.setBanco(in.texto());
+        e.setAgencia(in.texto());
+        e.setContaCorrente(in.texto());
+        e.setAgendaPagamento(in.texto());
+        return e;
+    }
+
+    private static void lerHistoricos(Leitor in, Empregado e) throws IOException {
+        Serie<CartaoPonto> cartoes = lerSerie(in, TipoLancamento.CARTOES, e.getId());
+        Serie<Venda> vendas = lerSerie(in, TipoLancamento.VENDAS, e.getId());
+        Serie<TaxaServico> taxas = lerSerie(in, TipoLancamento.TAXAS, e.getId());
+        e.definirHistoricos(cartoes, vendas, taxas);
+    }
+
+    private static <T> Serie<T> lerSerie(Leitor in, TipoLancamento<T> tipo, String dono) throws IOException {
+        Serie<T> serie = Serie.vazia(tipo, dono);
+        in.reiniciarDatas();
+        for (int i = in.tamanho(); i > 0; i--) {
+            String texto = in.data();
+            int dia = in.ultimoDia();
+            double valor = in.valor();
+            serie = serie.com(texto != null ? tipo.criar(texto, valor) : tipo.criar(dia, null, valor));
+        }
+        return serie;
+    }
+
+    // Historicos de um empregado ainda guardados no checkpoint. Todas as versoes do empregado que
+    // compartilham este objeto recebem as mesmas series, decodificadas uma unica vez.
+    private static final class HistoricosNoArquivo implements Empregado.HistoricosAdiados {
+        private final ArquivoAberto arquivo;
+        private final long inicio;
+        private final int tamanho;
+        // bytes copiados quando o arquivo foi fechado antes da leitura; protegido por 'arquivo'
+        private byte[] copia;
+        private Empregado lido;
+
+        private HistoricosNoArquivo(ArquivoAberto arquivo, long inicio, int tamanho) {
+            this.arquivo = arquivo;
+            this.inicio = inicio;
+            this.tamanho = tamanho;
+        }
+
+        @Override
+        public synchronized void carregar(Empregado destino) {
+            if (lido == null) {
+                Empregado historicos = new Empregado(destino.getId());
+                try {
+                    lerHistoricos(new Leitor(arquivo.ler(this)), historicos);
+                } catch (IOException | RuntimeException e) {
+                    throw new RuntimeException("Erro ao ler o arquivo de dados.", e);
+                }
+                lido = historicos;
+                arquivo.lido(this);
+            }
+            destino.definirHistoricos(lido.serieDeCartoes(), lido.serieDeVendas(), lido.serieDeTaxas());
+        }
+
+        // grava tamanho e bytes originais; falso se os historicos ja foram decodificados
+        private synchronized boolean copiarPara(Escritor out) throws IOException {
+            if (lido != null) {
+                return false;
+            }
+            ByteBuffer trecho = arquivo.ler(this);
+            out.varint(tamanho);
+            out.bytes(trecho.array());
+            return true;
+        }
+    }
+
+    private static final class Escritor {
+        private final OutputStream out;
+        private final Map<String, Integer> dicionario = new HashMap<>();
+        private long ultimoDia;
+
+        private Escritor(OutputStream destino) {
+            this.out = destino instanceof BufferedOutputStream || destino instanceof ByteArrayOutputStream
+                    ? destino : new BufferedOutputStream(destino, 1 << 16);
+        }
+
+        void bytes(byte[] b) throws IOException {
+            out.write(b);
+        }
+
+        void varint(long valor) throws IOException {
+            while ((valor & ~0x7FL) != 0) {
+                out.write((int) ((valor & 0x7F) | 0x80));
+                valor >>>= 7;
+            }
+            out.write((int) valor);
+        }
+
+        void texto(String s) throws IOException {
+            if (s == null) {
+                varint(TEXTO_NULO);
+                return;
+            }
+            Integer indice = dicionario.get(s);
+            if (indice != null) {
+                varint(indice + 2L);
+                return;
+            }
+            dicionario.put(s, dicionario.size());
+            varint(TEXTO_NOVO);
+            textoPorExtenso(s);
+        }
+
+        void textoPorExtenso(String s) throws IOException {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            out.write(utf8);
+        }
+
+        // centavos * 2, ou 1 seguido do double por extenso
+        void valor(double v) throws IOException {
+            long centavos = Math.round(v * 100);
+            if (centavos >= 0 && centavos < 1L << 62 && centavos / 100.0 == v
+                    && Double.doubleToRawLongBits(v) != Long.MIN_VALUE) {
+                varint(centavos << 1);
+                return;
+            }
+            varint(1);
+            long bits = Double.doubleToRawLongBits(v);
+            for (int i = 56; i >= 0; i -= 8) {
+                out.write((int) (bits >>> i));
+            }
+        }
+
+        void reiniciarDatas() {
+            ultimoDia = 0;
+        }
+
+        // 1 seguido do texto
+        void data(String data) throws IOException {
+            varint(1);
+            textoPorExtenso(data);
+        }
+
+        // diferenca para a data anterior * 2
+        void dia(long dia) throws IOException {
+            long delta = dia - ultimoDia;
+            ultimoDia = dia;
+            varint(((delta << 1) ^ (delta >> 63)) << 1);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    // Le de um buffer ja preenchido ou, com um canal, de uma janela que avanca pelo arquivo
+    private static final class Leitor {
+        private final FileChannel canal;
+        private ByteBuffer in;
+        // posicao no arquivo do inicio de 'in'
+        private long inicioDoBuffer;
+        private final List<String> dicionario = new ArrayList<>();
+        private long ultimoDia;
+
+        private Leitor(ByteBuffer origem) {
+            this.canal = null;
+            this.in = origem;
+        }
+
+        private Leitor(FileChannel canal) {
+            this.canal = canal;
+            this.in = ByteBuffer.allocate(1 << 16);
+            in.limit(0);
+        }
+
+        // garante pelo menos n bytes em 'in'
+        private void exigir(int n) throws IOException {
+            if (in.remaining() >= n) {
+                return;
+            }
+            if (canal == null || n > canal.size() - posicao()) {
+                throw new EOFException();
+            }
+            inicioDoBuffer += in.position();
+            if (n > in.capacity()) {
+                in = ByteBuffer.allocate(n).put(in);
+            } else {
+                in.compact();
+            }
+            while (in.position() < n) {
+                if (canal.read(in, inicioDoBuffer + in.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            in.flip();
+        }
+
+        int byteSemSinal() throws IOException {
+            exigir(1);
+            return in.get() & 0xFF;
+        }
+
+        long posicao() {
+            return inicioDoBuffer + in.position();
+        }
+
+        void pular(int n) throws IOException {
+            if (n <= in.remaining()) {
+                in.position(in.position() + n);
+                return;
+            }
+            if (canal == null || n > canal.size() - posicao()) {
+                throw new EOFException();
+            }
+            inicioDoBuffer = posicao() + n;
+            in.clear().limit(0);
+        }
+
+        long varint() throws IOException {
+            long resultado = 0;
+            for (int deslocamento = 0; deslocamento < 64; deslocamento += 7) {
+                int b = byteSemSinal();
+                resultado |= (long) (b & 0x7F) << deslocamento;
+                if ((b & 0x80) == 0) {
+                    return resultado;
+                }
+            }
+            throw new IOException("Arquivo de dados invalido.");
+        }
+
+        int tamanho() throws IOException {
+            long n = varint();
+            if (n > Integer.MAX_VALUE) {
+                throw new IOException("Arquivo de dados invalido.");
+            }
+            return (int) n;
+        }
+
+        String texto() throws IOException {
+            long codigo = varint();
+            if (codigo == TEXTO_NULO) {
+                return null;
+            }
+            if (codigo != TEXTO_NOVO) {
+                return dicionario.get((int) (codigo - 2));
+            }
+            String s = textoPorExtenso();
+            dicionario.add(s);
+            return s;
+        }
+
+        String textoPorExtenso() throws IOException {
+            int tamanho = tamanho();
+            exigir(tamanho);
+            byte[] utf8 = new byte[tamanho];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        double valor() throws IOException {
+            long codigo = varint();
+            if ((codigo & 1) == 0) {
+                return (codigo >>> 1) / 100.0;
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | byteSemSinal();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        void reiniciarDatas() {
+            ultimoDia = 0;
+        }
+
+        // texto da proxima data quando ela foi gravada por extenso, ou null (o dia fica em ultimoDia())
+        String data() throws IOException {
+            long codigo = varint();
+            if ((codigo & 1) != 0) {
+                return textoPorExtenso();
+            }
+            long zigzag = codigo >>> 1;
+            ultimoDia += (zigzag >>> 1) ^ -(zigzag & 1);
+            if (ultimoDia != (int) ultimoDia) {
+                throw new IOException("Arquivo de dados invalido.");
+            }
+            if (ultimoDia < Datas.INICIO_GREGORIANO) {
+                LocalDate data = LocalDate.ofEpochDay(ultimoDia);
+                return data.getDayOfMonth() + "/" + data.getMonthValue() + "/" + data.getYear();
+            }
+            return null;
+        }
+
+        int ultimoDia() {
+            return (int) ultimoDia;
+        }
+    }
+}
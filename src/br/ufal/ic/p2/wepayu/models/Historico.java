@@ -0,0 +1,159 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pilha de undo/redo; os snapshots mais antigos vao para um arquivo como diferenca para o de cima
+final class Historico {
+    static final String ARQUIVO = "empregados.historico";
+    // quantos snapshots de cada pilha ficam em memoria
+    private static final int LIMITE_ENTRADAS =
+            Math.max(1, Integer.getInteger("wepayu.historico.limiteEntradas", 256));
+
+    private static RandomAccessFile arquivo;
+
+    private final List<Snapshot> entradas;
+    // entradas abaixo deste indice estao no arquivo
+    private int primeiroEmMemoria;
+
+    Historico() {
+        this.entradas = new ArrayList<>();
+    }
+
+    private Historico(Historico outro) {
+        this.entradas = new ArrayList<>(outro.entradas);
+        this.primeiroEmMemoria = outro.primeiroEmMemoria;
+    }
+
+    Historico copia() {
+        return new Historico(this);
+    }
+
+    boolean isEmpty() {
+        return entradas.isEmpty();
+    }
+
+    void clear() {
+        entradas.clear();
+        primeiroEmMemoria = 0;
+    }
+
+    void push(Snapshot snapshot) {
+        entradas.add(snapshot);
+        while (entradas.size() - primeiroEmMemoria > LIMITE_ENTRADAS) {
+            Snapshot antigo = entradas.get(primeiroEmMemoria);
+            Snapshot acima = entradas.get(primeiroEmMemoria + 1);
+            entradas.set(primeiroEmMemoria, antigo.gravar(acima.estado));
+            primeiroEmMemoria++;
+        }
+    }
+
+    // a diferenca de um snapshot gravado e aplicada sobre 'atual': quem esta acima dele na pilha
+    // tem sempre o estado que vigora quando ele chega ao topo
+    Snapshot pop(Estado atual) {
+        Snapshot topo = entradas.remove(entradas.size() - 1);
+        if (primeiroEmMemoria > entradas.size()) {
+            primeiroEmMemoria = entradas.size();
+        }
+        return topo.estado != null ? topo : topo.reler(atual);
+    }
+
+    // Nenhuma pilha pode ter entradas gravadas quando o arquivo e descartado
+    static void descartarArquivo() {
+        try {
+            if (arquivo != null) {
+                arquivo.close();
+            }
+        } catch (IOException e) {
+            // ignora problemas de IO
+        }
+        arquivo = null;
+        File f = new File(ARQUIVO);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    private static long acrescentar(byte[] registro) {
+        try {
+            if (arquivo == null) {
+                arquivo = new RandomAccessFile(ARQUIVO, "rw");
+                arquivo.setLength(0);
+            }
+            long posicao = arquivo.length();
+            arquivo.seek(posicao);
+            arquivo.writeInt(registro.length);
+            arquivo.write(registro);
+            return posicao;
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao gravar historico de undo.", e);
+        }
+    }
+
+    private static byte[] ler(long posicao) {
+        try {
+            arquivo.seek(posicao);
+            byte[] registro = new byte[arquivo.readInt()];
+            arquivo.readFully(registro);
+            return registro;
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler historico de undo.", e);
+        }
+    }
+
+    static final class Snapshot {
+        final Estado estado;
+        final int proximoId;
+        final Historico historicoUndo;
+        // so para snapshots gravados: agendas, quando diferem das do snapshot de cima, e a posicao no arquivo
+        private final Estado agendas;
+        private final long posicao;
+
+        Snapshot(Estado estado, int proximoId) {
+            this(estado, proximoId, null);
+        }
+
+        Snapshot(Estado estado, int proximoId, Historico historicoUndo) {
+            this(estado, proximoId, historicoUndo, null, -1);
+        }
+
+        private Snapshot(Estado estado, int proximoId, Historico historicoUndo, Estado agendas, long posicao) {
+            this.estado = estado;
+            this.proximoId = proximoId;
+            this.historicoUndo = historicoUndo;
+            this.agendas = agendas;
+            this.posicao = posicao;
+        }
+
+        private Snapshot gravar(Estado acima) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                Codificador.escreverDiferenca(out, estado, acima);
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Erro ao gravar historico de undo.", e);
+            }
+            Estado agendasProprias = estado.mesmasAgendas(acima) ? null : estado.semEmpregados();
+            return new Snapshot(null, proximoId, historicoUndo, agendasProprias, acrescentar(bytes.toByteArray()));
+        }
+
+        private Snapshot reler(Estado atual) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(ler(posicao)));
+            Estado relido;
+            try {
+                relido = Codificador.lerDiferenca(in, atual);
+            } catch (IOException e) {
+                throw new RuntimeException("Erro ao ler historico de undo.", e);
+            }
+            return new Snapshot(agendas == null ? relido : relido.comAgendasDe(agendas), proximoId, historicoUndo);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.util.Arrays;
+
+// Lancamentos de uma serie ordenados por dia, com somas acumuladas por periodo; persistente como as series
+final class IndiceDiario {
+    // resposta de centavos e centavosExatos quando o total precisa ser somado um a um
+    static final long SEM_TOTAL = Long.MIN_VALUE;
+    // valores a partir daqui (ou negativos, NaN) ficam fora das somas acumuladas
+    private static final double LIMITE_ACUMULADO = 1e9;
+    // cada valor acumulado tem menos de 1e11 centavos: ate aqui o total de um periodo cabe num long
+    private static final int LANCAMENTOS_SEM_ESTOURO = 90_000_000;
+    // horas contadas em 1/1024 de hora; multiplos disso somam em double sem arredondar
+    private static final int FRACOES_DA_HORA = 1024;
+    private static final long FRACOES_NORMAIS_POR_DIA = 8L * FRACOES_DA_HORA;
+    // cartoes e dias com horas a partir daqui ficam fora das somas de horas
+    private static final long LIMITE_FRACOES = (1L << 20) * FRACOES_DA_HORA;
+    // horas do dia de um cartao depois de outro que ficou fora das somas
+    private static final long DIA_FORA_DAS_SOMAS = -1;
+
+    private static final IndiceDiario VAZIO = new IndiceDiario(new int[0], new int[0], new double[0], null,
+            new long[1], new int[1], new int[1], null, 0, 0, new int[]{0});
+    private static final IndiceDiario VAZIO_COM_HORAS = new IndiceDiario(new int[0], new int[0], new double[0], null,
+            new long[1], new int[1], new int[1], new Horas(0), 0, 0, new int[]{0});
+
+    private final int[] posicoes;
+    // null quando a serie e mapeada: dia e valor sao lidos das colunas dela, pela posicao
+    private final int[] dias;
+    private final double[] valores;
+    private final Serie<?> colunas;
+    // somas das posicoes anteriores a cada uma (uma casa a mais): centavos, valores de fora e valores inexatos
+    private final long[] somaCentavos;
+    private final int[] somaForaDoLimite;
+    private final int[] somaInexatos;
+    // null fora do indice dos cartoes
+    private final Horas horas;
+    private final int tamanho;
+    // lancamentos com a data por extenso (fora da forma d/M/yyyy)
+    private final int porExtenso;
+    // quantas posicoes dos vetores ja foram ocupadas por alguma versao
+    private final int[] ocupados;
+
+    private IndiceDiario(int[] posicoes, int[] dias, double[] valores, Serie<?> colunas, long[] somaCentavos,
+                         int[] somaForaDoLimite, int[] somaInexatos, Horas horas, int tamanho, int porExtenso,
+                         int[] ocupados) {
+        this.posicoes = posicoes;
+        this.dias = dias;
+        this.valores = valores;
+        this.colunas = colunas;
+        this.somaCentavos = somaCentavos;
+        this.somaForaDoLimite = somaForaDoLimite;
+        this.somaInexatos = somaInexatos;
+        this.horas = horas;
+        this.tamanho = tamanho;
+        this.porExtenso = porExtenso;
+        this.ocupados = ocupados;
+    }
+
+    // 'comHoras' para o indice dos cartoes, em que os valores sao horas
+    static IndiceDiario de(Serie<?> serie, boolean comHoras) {
+        int n = serie.size();
+        if (n == 0) {
+            return comHoras ? VAZIO_COM_HORAS : VAZIO;
+        }
+        boolean mapeada = serie instanceof SerieMapeada;
+        int[] posicoes = new int[n];
+        int[] dias = mapeada ? null : new int[n];
+        double[] valores = mapeada ? null : new double[n];
+        int porExtenso = 0;
+        boolean ordenado = true;
+        int anterior = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            posicoes[i] = i;
+            int dia = serie.dia(i);
+            if (!mapeada) {
+                dias[i] = dia;
+                valores[i] = serie.valor(i);
+            }
+            if (serie.dataPorExtenso(i) != null) {
+                porExtenso++;
+            }
+            ordenado &= dia >= anterior;
+            anterior = dia;
+        }
+        if (!ordenado) {
+            // dia nos 32 bits altos e posicao nos baixos: ordena por dia e depois por posicao
+            long[] chaves = new long[n];
+            for (int i = 0; i < n; i++) {
+                chaves[i] = ((long) serie.dia(i) << 32) | i;
+            }
+            Arrays.sort(chaves);
+            for (int i = 0; i < n; i++) {
+                posicoes[i] = (int) chaves[i];
+                if (!mapeada) {
+                    dias[i] = (int) (chaves[i] >> 32);
+                    valores[i] = serie.valor(posicoes[i]);
+                }
+            }
+        }
+        IndiceDiario indice = new IndiceDiario(posicoes, dias, valores, mapeada ? serie : null, new long[n + 1],
+                new int[n + 1], new int[n + 1], comHoras ? new Horas(n) : null, n, porExtenso, new int[]{n});
+        indice.acumular(0, n);
+        return indice;
+    }
+
+    // indice da versao 'serie', que tem um lancamento a mais, na posicao 'tamanho'
+    IndiceDiario com(Serie<?> serie, int dia, double valor, boolean dataPorExtenso) {
+        int extenso = porExtenso + (dataPorExtenso ? 1 : 0);
+        // os vazios compartilhados nao tem colunas, entao a serie decide
+        boolean mapeada = serie instanceof SerieMapeada;
+        Serie<?> novasColunas = mapeada ? serie : null;
+        if (tamanho == 0 || dia >= dia(tamanho - 1)) {
+            synchronized (ocupados) {
+                if (ocupados[0] == tamanho && tamanho < posicoes.length) {
+                    posicoes[tamanho] = tamanho;
+                    if (!mapeada) {
+                        dias[tamanho] = dia;
+                        valores[tamanho] = valor;
+                    }
+                    IndiceDiario novo = new IndiceDiario(posicoes, dias, valores, novasColunas, somaCentavos,
+                            somaForaDoLimite, somaInexatos, horas, tamanho + 1, extenso, ocupados);
+                    novo.acumular(tamanho, tamanho + 1);
+                    ocupados[0] = tamanho + 1;
+                    return novo;
+                }
+            }
+        }
+        int capacidade = Math.max(4, tamanho * 2);
+        // depois dos lancamentos do mesmo dia, que vieram antes
+        int lugar = inicio(dia + 1L);
+        int[] novasPosicoes = inserir(posicoes, new int[capacidade], lugar, tamanho);
+        int[] novosDias = null;
+        double[] novosValores = null;
+        if (!mapeada) {
+            novosDias = inserir(dias, new int[capacidade], lugar, dia);
+            novosValores = new double[capacidade];
+            System.arraycopy(valores, 0, novosValores, 0, lugar);
+            novosValores[lugar] = valor;
+            System.arraycopy(valores, lugar, novosValores, lugar + 1, tamanho - lugar);
+        }
+        IndiceDiario novo = new IndiceDiario(novasPosicoes, novosDias, novosValores, novasColunas,
+                Arrays.copyOf(somaCentavos, capacidade + 1), Arrays.copyOf(somaForaDoLimite, capacidade + 1),
+                Arrays.copyOf(somaInexatos, capacidade + 1), horas == null ? null : horas.copia(capacidade),
+                tamanho + 1, extenso, new int[]{tamanho + 1});
+        novo.acumular(lugar, tamanho + 1);
+        return novo;
+    }
+
+    // copia os 'tamanho' primeiros de 'de' para 'para', com 'valor' inserido em 'lugar'
+    private int[] inserir(int[] de, int[] para, int lugar, int valor) {
+        System.arraycopy(de, 0, para, 0, lugar);
+        para[lugar] = valor;
+        System.arraycopy(de, lugar, para, lugar + 1, tamanho - lugar);
+        return para;
+    }
+
+    int tamanho() {
+        return tamanho;
+    }
+
+    // primeira posicao com dia >= 'dia' (tamanho() se nao houver)
+    int inicio(long dia) {
+        int baixo = 0;
+        int alto = tamanho;
+        while (baixo < alto) {
+            int meio = (baixo + alto) >>> 1;
+            if (dia(meio) < dia) {
+                baixo = meio + 1;
+            } else {
+                alto = meio;
+            }
+        }
+        return baixo;
+    }
+
+    int dia(int indice) {
+        return dias != null ? dias[indice] : colunas.dia(posicoes[indice]);
+    }
+
+    int posicao(int indice) {
+        return posicoes[indice];
+    }
+
+    double valor(int indice) {
+        return valores != null ? valores[indice] : colunas.valor(posicoes[indice]);
+    }
+
+    boolean temDatasPorExtenso() {
+        return porExtenso > 0;
+    }
+
+    // centavos truncados em [de, ate); SEM_TOTAL se algum valor ficou fora das somas acumuladas
+    long centavos(long de, long ate) {
+        int inicio = inicio(de);
+        int fim = inicio(ate);
+        if (somaForaDoLimite[fim] != somaForaDoLimite[inicio] || fim - inicio >= LANCAMENTOS_SEM_ESTOURO) {
+            return SEM_TOTAL;
+        }
+        return somaCentavos[fim] - somaCentavos[inicio];
+    }
+
+    // o total em [de, ate) quando "%.2f" da soma em double o daria exatamente; SEM_TOTAL caso contrario
+    long centavosExatos(long de, long ate) {
+        int inicio = inicio(de);
+        int fim = inicio(ate);
+        if (somaInexatos[fim] != somaInexatos[inicio] || fim - inicio >= LANCAMENTOS_SEM_ESTOURO) {
+            return SEM_TOTAL;
+        }
+        long total = somaCentavos[fim] - somaCentavos[inicio];
+        if ((double) (fim - inicio) * total * 0x1p-52 >= 0.4) {
+            return SEM_TOTAL;
+        }
+        return total;
+    }
+
+    // horas normais e extras em [de, ate); null se algum cartao ficou fora das somas de horas
+    double[] horasExatas(long de, long ate) {
+        double normais = horasExatas(de, ate, false);
+        if (Double.isNaN(normais)) {
+            return null;
+        }
+        return new double[]{normais, horasExatas(de, ate, true)};
+    }
+
+    // Uma das horas de horasExatas, sem montar o vetor; NaN quando horasExatas daria null
+    double horasExatas(long de, long ate, boolean extras) {
+        if (horas == null) {
+            return Double.NaN;
+        }
+        int inicio = inicio(de);
+        int fim = inicio(ate);
+        if (horas.somaInexatos[fim] != horas.somaInexatos[inicio]) {
+            return Double.NaN;
+        }
+        long normais = horas.somaNormais[fim] - horas.somaNormais[inicio];
+        long somaExtras = horas.somaExtras[fim] - horas.somaExtras[inicio];
+        // abaixo de 2^53 fracoes, cada soma parcial em double tambem e exata
+        if (normais >= 1L << 53 || somaExtras >= 1L << 53) {
+            return Double.NaN;
+        }
+        return (double) (extras ? somaExtras : normais) / FRACOES_DA_HORA;
+    }
+
+    private void acumular(int de, int ate) {
+        for (int i = de; i < ate; i++) {
+            double valor = valor(i);
+            long centavos = 0;
+            boolean foraDoLimite = !(valor >= 0 && valor < LIMITE_ACUMULADO);
+            boolean exato = false;
+            if (!foraDoLimite) {
+                centavos = Dinheiro.truncar(valor);
+                exato = Dinheiro.emCentavos(valor);
+            }
+            somaCentavos[i + 1] = somaCentavos[i] + centavos;
+            somaForaDoLimite[i + 1] = somaForaDoLimite[i] + (foraDoLimite ? 1 : 0);
+            somaInexatos[i + 1] = somaInexatos[i] + (exato ? 0 : 1);
+        }
+        if (horas != null) {
+            horas.acumular(this, de, ate);
+        }
+    }
+
+    // na ordem de lancamento: somar doubles em outra ordem pode mudar os ultimos bits
+    double somar(long de, long ate) {
+        int inicio = inicio(de);
+        int fim = inicio(ate);
+        boolean emOrdem = true;
+        for (int i = inicio + 1; i < fim && emOrdem; i++) {
+            emOrdem = posicoes[i] > posicoes[i - 1];
+        }
+        double total = 0;
+        if (emOrdem) {
+            for (int i = inicio; i < fim; i++) {
+                total += valor(i);
+            }
+            return total;
+        }
+        long[] chaves = new long[fim - inicio];
+        for (int i = inicio; i < fim; i++) {
+            chaves[i - inicio] = ((long) posicoes[i] << 32) | i;
+        }
+        Arrays.sort(chaves);
+        for (long chave : chaves) {
+            total += valor((int) chave);
+        }
+        return total;
+    }
+
+    // somas acumuladas, em fracoes de hora, do que cada cartao acrescentou as horas normais e extras do dia
+    private static final class Horas {
+        // horas do dia ate a posicao, inclusive, ou DIA_FORA_DAS_SOMAS
+        private final long[] doDia;
+        private final long[] somaNormais;
+        private final long[] somaExtras;
+        // cartoes fora das somas: horas que nao sao fracoes exatas, grandes demais ou negativas
+        private final int[] somaInexatos;
+
+        private Horas(int capacidade) {
+            this(new long[capacidade], new long[capacidade + 1], new long[capacidade + 1], new int[capacidade + 1]);
+        }
+
+        private Horas(long[] doDia, long[] somaNormais, long[] somaExtras, int[] somaInexatos) {
+            this.doDia = doDia;
+            this.somaNormais = somaNormais;
+            this.somaExtras = somaExtras;
+            this.somaInexatos = somaInexatos;
+        }
+
+        private Horas copia(int capacidade) {
+            return new Horas(Arrays.copyOf(doDia, capacidade), Arrays.copyOf(somaNormais, capacidade + 1),
+                    Arrays.copyOf(somaExtras, capacidade + 1), Arrays.copyOf(somaInexatos, capacidade + 1));
+        }
+
+        private void acumular(IndiceDiario indice, int de, int ate) {
+            for (int i = de; i < ate; i++) {
+                long antes = i > 0 && indice.dia(i - 1) == indice.dia(i) ? doDia[i - 1] : 0;
+                double fracoes = indice.valor(i) * FRACOES_DA_HORA;
+                long depois = DIA_FORA_DAS_SOMAS;
+                if (antes != DIA_FORA_DAS_SOMAS && fracoes >= 0 && fracoes < LIMITE_FRACOES
+                        && fracoes == Math.rint(fracoes)) {
+                    depois = antes + (long) fracoes;
+                    if (depois >= LIMITE_FRACOES) {
+                        depois = DIA_FORA_DAS_SOMAS;
+                    }
+                }
+                doDia[i] = depois;
+                long normais = 0;
+                long extras = 0;
+                if (depois != DIA_FORA_DAS_SOMAS) {
+                    normais = Math.min(depois, FRACOES_NORMAIS_POR_DIA) - Math.min(antes, FRACOES_NORMAIS_POR_DIA);
+                    extras = Math.max(depois - FRACOES_NORMAIS_POR_DIA, 0) - Math.max(antes - FRACOES_NORMAIS_POR_DIA, 0);
+                }
+                somaNormais[i + 1] = somaNormais[i] + normais;
+                somaExtras[i + 1] = somaExtras[i] + extras;
+                somaInexatos[i + 1] = somaInexatos[i] + (depois == DIA_FORA_DAS_SOMAS ? 1 : 0);
+            }
+        }
+    }
+}
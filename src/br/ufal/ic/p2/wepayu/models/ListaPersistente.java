@@ -0,0 +1,101 @@
+package br.ufal.ic.p2.wepayu.models;
+
+// Serie que guarda os lancamentos no heap. Versoes sucessivas dividem o mesmo vetor: acrescentar
+// ao final da versao mais recente nao copia nada, e as versoes antigas continuam enxergando
+// apenas o seu prefixo. So quando uma versao antiga recebe um elemento o vetor e copiado.
+final class ListaPersistente<T> extends Serie<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final TipoLancamento<T> tipo;
+    private final Object[] elementos;
+    private final int tamanho;
+    // quantas posicoes do vetor ja foram ocupadas por alguma versao
+    private final int[] ocupados;
+
+    // lista vazia do tipo (ver TipoLancamento.listaVazia)
+    ListaPersistente(TipoLancamento<T> tipo) {
+        this(tipo, new Object[0], 0, new int[]{0});
+    }
+
+    private ListaPersistente(TipoLancamento<T> tipo, Object[] elementos, int tamanho, int[] ocupados) {
+        this.tipo = tipo;
+        this.elementos = elementos;
+        this.tamanho = tamanho;
+        this.ocupados = ocupados;
+    }
+
+    @Override
+    TipoLancamento<T> tipo() {
+        return tipo;
+    }
+
+    @Override
+    ListaPersistente<T> acrescentar(T item) {
+        synchronized (ocupados) {
+            if (ocupados[0] == tamanho && tamanho < elementos.length) {
+                elementos[tamanho] = item;
+                ocupados[0] = tamanho + 1;
+                return new ListaPersistente<>(tipo, elementos, tamanho + 1, ocupados);
+            }
+        }
+        Object[] novos = new Object[Math.max(4, tamanho * 2)];
+        System.arraycopy(elementos, 0, novos, 0, tamanho);
+        novos[tamanho] = item;
+        return new ListaPersistente<>(tipo, novos, tamanho + 1, new int[]{tamanho + 1});
+    }
+
+    @Override
+    ListaPersistente<T> prefixo(int n) {
+        if (n == tamanho) {
+            return this;
+        }
+        if (n == 0) {
+            return tipo.listaVazia();
+        }
+        return new ListaPersistente<>(tipo, elementos, n, ocupados);
+    }
+
+    @Override
+    boolean ehPrefixoDe(Serie<T> outra) {
+        if (!(outra instanceof ListaPersistente) || tamanho > outra.size()) {
+            return false;
+        }
+        Object[] outros = ((ListaPersistente<T>) outra).elementos;
+        if (elementos == outros) {
+            return true;
+        }
+        for (int i = 0; i < tamanho; i++) {
+            if (elementos[i] != outros[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    int dia(int indice) {
+        return tipo.dia(get(indice));
+    }
+
+    @Override
+    String dataPorExtenso(int indice) {
+        return tipo.dataPorExtenso(get(indice));
+    }
+
+    @Override
+    double valor(int indice) {
+        return tipo.valor(get(indice));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int indice) {
+        verificarIndice(indice);
+        return (T) elementos[indice];
+    }
+
+    @Override
+    public int size() {
+        return tamanho;
+    }
+}
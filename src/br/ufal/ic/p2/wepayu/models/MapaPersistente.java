@@ -0,0 +1,434 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// Mapa imutavel (hash array mapped trie). Cada alteracao copia apenas o caminho ate a chave,
+// entao versoes consecutivas compartilham quase toda a estrutura e guardar uma versao antiga
+// custa apenas uma referencia.
+final class MapaPersistente<K, V> {
+    private static final int BITS = 5;
+    private static final int MASCARA = (1 << BITS) - 1;
+    private static final MapaPersistente<?, ?> VAZIO = new MapaPersistente<>(null, 0);
+
+    private final No raiz;
+    private final int tamanho;
+
+    private MapaPersistente(No raiz, int tamanho) {
+        this.raiz = raiz;
+        this.tamanho = tamanho;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> MapaPersistente<K, V> vazio() {
+        return (MapaPersistente<K, V>) VAZIO;
+    }
+
+    int tamanho() {
+        return tamanho;
+    }
+
+    boolean isEmpty() {
+        return tamanho == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object chave) {
+        if (raiz == null || chave == null) {
+            return null;
+        }
+        return (V) raiz.buscar(0, espalhar(chave.hashCode()), chave);
+    }
+
+    boolean contem(Object chave) {
+        return get(chave) != null;
+    }
+
+    MapaPersistente<K, V> com(K chave, V valor) {
+        Objects.requireNonNull(chave);
+        Objects.requireNonNull(valor);
+        int hash = espalhar(chave.hashCode());
+        Resultado r = new Resultado();
+        No novaRaiz = raiz == null
+                ? NoBitmap.VAZIO.inserir(0, hash, chave, valor, r)
+                : raiz.inserir(0, hash, chave, valor, r);
+        if (novaRaiz == raiz) {
+            return this;
+        }
+        return new MapaPersistente<>(novaRaiz, r.adicionou ? tamanho + 1 : tamanho);
+    }
+
+    MapaPersistente<K, V> sem(Object chave) {
+        if (raiz == null || chave == null) {
+            return this;
+        }
+        No novaRaiz = raiz.remover(0, espalhar(chave.hashCode()), chave);
+        if (novaRaiz == raiz) {
+            return this;
+        }
+        return novaRaiz == null ? vazio() : new MapaPersistente<>(novaRaiz, tamanho - 1);
+    }
+
+    Collection<V> valores() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new Iterador<>(raiz, false);
+            }
+
+            @Override
+            public int size() {
+                return tamanho;
+            }
+        };
+    }
+
+    Collection<K> chaves() {
+        return new AbstractCollection<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return new Iterador<>(raiz, true);
+            }
+
+            @Override
+            public int size() {
+                return tamanho;
+            }
+        };
+    }
+
+    // Visita as chaves cujo valor difere entre os dois mapas (por referencia), pulando as
+    // subarvores compartilhadas. O custo e proporcional ao numero de diferencas.
+    void diferencas(MapaPersistente<K, V> outro, Diferenca<K, V> visitante) {
+        diferencas(raiz, outro.raiz, 0, visitante);
+    }
+
+    interface Diferenca<K, V> {
+        void visitar(K chave, V valorAqui, V valorNoOutro);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void diferencas(No a, No b, int nivel, Diferenca<K, V> visitante) {
+        if (a == b) {
+            return;
+        }
+        if (a instanceof NoBitmap && b instanceof NoBitmap) {
+            NoBitmap x = (NoBitmap) a;
+            NoBitmap y = (NoBitmap) b;
+            int restantes = x.bitmap | y.bitmap;
+            while (restantes != 0) {
+                int bit = Integer.lowestOneBit(restantes);
+                restantes &= ~bit;
+                boolean emX = (x.bitmap & bit) != 0;
+                boolean emY = (y.bitmap & bit) != 0;
+                Object kx = emX ? x.itens[2 * x.posicao(bit)] : null;
+                Object vx = emX ? x.itens[2 * x.posicao(bit) + 1] : null;
+                Object ky = emY ? y.itens[2 * y.posicao(bit)] : null;
+                Object vy = emY ? y.itens[2 * y.posicao(bit) + 1] : null;
+                if (emX && emY && kx == null && ky == null) {
+                    diferencas((No) vx, (No) vy, nivel + BITS, visitante);
+                } else if (emX && emY && kx != null && kx.equals(ky)) {
+                    if (vx != vy) {
+                        visitante.visitar((K) kx, (V) vx, (V) vy);
+                    }
+                } else {
+                    compararItens(coletar(kx, vx), coletar(ky, vy), visitante);
+                }
+            }
+            return;
+        }
+        compararItens(coletar(null, a), coletar(null, b), visitante);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void compararItens(Map<Object, Object> aqui, Map<Object, Object> noOutro,
+                                             Diferenca<K, V> visitante) {
+        for (Map.Entry<Object, Object> item : aqui.entrySet()) {
+            Object outro = noOutro.get(item.getKey());
+            if (outro != item.getValue()) {
+                visitante.visitar((K) item.getKey(), (V) item.getValue(), (V) outro);
+            }
+        }
+        for (Map.Entry<Object, Object> item : noOutro.entrySet()) {
+            if (!aqui.containsKey(item.getKey())) {
+                visitante.visitar((K) item.getKey(), null, (V) item.getValue());
+            }
+        }
+    }
+
+    private static Map<Object, Object> coletar(Object chave, Object valor) {
+        Map<Object, Object> itens = new HashMap<>();
+        if (chave != null) {
+            itens.put(chave, valor);
+        } else if (valor != null) {
+            Object[] vetor = valor instanceof NoBitmap ? ((NoBitmap) valor).itens : ((NoColisao) valor).itens;
+            for (int i = 0; i < vetor.length; i += 2) {
+                if (vetor[i] == null) {
+                    itens.putAll(coletar(null, vetor[i + 1]));
+                } else {
+                    itens.put(vetor[i], vetor[i + 1]);
+                }
+            }
+        }
+        return itens;
+    }
+
+    private static int espalhar(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int indice(int hash, int nivel) {
+        return (hash >>> nivel) & MASCARA;
+    }
+
+    private static final class Resultado {
+        private boolean adicionou;
+    }
+
+    private abstract static class No {
+        abstract Object buscar(int nivel, int hash, Object chave);
+
+        abstract No inserir(int nivel, int hash, Object chave, Object valor, Resultado r);
+
+        abstract No remover(int nivel, int hash, Object chave);
+    }
+
+    // Cada posicao ocupada guarda um par (chave, valor) ou (null, subno)
+    private static final class NoBitmap extends No {
+        private static final NoBitmap VAZIO = new NoBitmap(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] itens;
+
+        private NoBitmap(int bitmap, Object[] itens) {
+            this.bitmap = bitmap;
+            this.itens = itens;
+        }
+
+        private int posicao(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object buscar(int nivel, int hash, Object chave) {
+            int bit = 1 << indice(hash, nivel);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int p = 2 * posicao(bit);
+            Object k = itens[p];
+            if (k == null) {
+                return ((No) itens[p + 1]).buscar(nivel + BITS, hash, chave);
+            }
+            return chave.equals(k) ? itens[p + 1] : null;
+        }
+
+        @Override
+        No inserir(int nivel, int hash, Object chave, Object valor, Resultado r) {
+            int bit = 1 << indice(hash, nivel);
+            int p = 2 * posicao(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] novos = new Object[itens.length + 2];
+                System.arraycopy(itens, 0, novos, 0, p);
+                novos[p] = chave;
+                novos[p + 1] = valor;
+                System.arraycopy(itens, p, novos, p + 2, itens.length - p);
+                r.adicionou = true;
+                return new NoBitmap(bitmap | bit, novos);
+            }
+            Object k = itens[p];
+            Object v = itens[p + 1];
+            if (k == null) {
+                No sub = (No) v;
+                No novoSub = sub.inserir(nivel + BITS, hash, chave, valor, r);
+                return novoSub == sub ? this : comItem(p + 1, null, novoSub);
+            }
+            if (chave.equals(k)) {
+                return v == valor ? this : comItem(p + 1, k, valor);
+            }
+            r.adicionou = true;
+            No sub = criarNo(nivel + BITS, k, v, hash, chave, valor);
+            return comItem(p + 1, null, sub);
+        }
+
+        private NoBitmap comItem(int p, Object chave, Object valor) {
+            Object[] novos = itens.clone();
+            novos[p - 1] = chave;
+            novos[p] = valor;
+            return new NoBitmap(bitmap, novos);
+        }
+
+        @Override
+        No remover(int nivel, int hash, Object chave) {
+            int bit = 1 << indice(hash, nivel);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int p = 2 * posicao(bit);
+            Object k = itens[p];
+            if (k == null) {
+                No sub = (No) itens[p + 1];
+                No novoSub = sub.remover(nivel + BITS, hash, chave);
+                if (novoSub == sub) {
+                    return this;
+                }
+                if (novoSub != null) {
+                    return comItem(p + 1, null, novoSub);
+                }
+            } else if (!chave.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] novos = new Object[itens.length - 2];
+            System.arraycopy(itens, 0, novos, 0, p);
+            System.arraycopy(itens, p + 2, novos, p, itens.length - p - 2);
+            return new NoBitmap(bitmap & ~bit, novos);
+        }
+
+        private static No criarNo(int nivel, Object k1, Object v1, int hash2, Object k2, Object v2) {
+            int hash1 = espalhar(k1.hashCode());
+            if (hash1 == hash2) {
+                return new NoColisao(hash1, new Object[]{k1, v1, k2, v2});
+            }
+            Resultado r = new Resultado();
+            return VAZIO.inserir(nivel, hash1, k1, v1, r).inserir(nivel, hash2, k2, v2, r);
+        }
+    }
+
+    // Chaves diferentes com o mesmo hash
+    private static final class NoColisao extends No {
+        private final int hash;
+        private final Object[] itens;
+
+        private NoColisao(int hash, Object[] itens) {
+            this.hash = hash;
+            this.itens = itens;
+        }
+
+        private int procurar(Object chave) {
+            for (int i = 0; i < itens.length; i += 2) {
+                if (chave.equals(itens[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object buscar(int nivel, int hash, Object chave) {
+            int i = procurar(chave);
+            return i < 0 ? null : itens[i + 1];
+        }
+
+        @Override
+        No inserir(int nivel, int hash, Object chave, Object valor, Resultado r) {
+            if (hash != this.hash) {
+                // desce um nivel ate os hashes se separarem
+                NoBitmap no = new NoBitmap(1 << indice(this.hash, nivel), new Object[]{null, this});
+                return no.inserir(nivel, hash, chave, valor, r);
+            }
+            int i = procurar(chave);
+            if (i >= 0) {
+                if (itens[i + 1] == valor) {
+                    return this;
+                }
+                Object[] novos = itens.clone();
+                novos[i + 1] = valor;
+                return new NoColisao(hash, novos);
+            }
+            Object[] novos = new Object[itens.length + 2];
+            System.arraycopy(itens, 0, novos, 0, itens.length);
+            novos[itens.length] = chave;
+            novos[itens.length + 1] = valor;
+            r.adicionou = true;
+            return new NoColisao(hash, novos);
+        }
+
+        @Override
+        No remover(int nivel, int hash, Object chave) {
+            int i = procurar(chave);
+            if (i < 0) {
+                return this;
+            }
+            if (itens.length == 2) {
+                return null;
+            }
+            Object[] novos = new Object[itens.length - 2];
+            System.arraycopy(itens, 0, novos, 0, i);
+            System.arraycopy(itens, i + 2, novos, i, itens.length - i - 2);
+            return new NoColisao(hash, novos);
+        }
+    }
+
+    // percorre os valores, ou as chaves se 'chaves'
+    private static final class Iterador<V> implements Iterator<V> {
+        private final boolean chaves;
+        private final Deque<Object[]> pilhaItens = new ArrayDeque<>();
+        private final Deque<Integer> pilhaPosicoes = new ArrayDeque<>();
+        private Object[] itens;
+        private int posicao;
+        private Object proximo;
+
+        private Iterador(No raiz, boolean chaves) {
+            this.chaves = chaves;
+            if (raiz != null) {
+                entrar(raiz);
+            }
+            avancar();
+        }
+
+        private void entrar(No no) {
+            if (itens != null) {
+                pilhaItens.push(itens);
+                pilhaPosicoes.push(posicao);
+            }
+            itens = no instanceof NoBitmap ? ((NoBitmap) no).itens : ((NoColisao) no).itens;
+            posicao = 0;
+        }
+
+        private void avancar() {
+            proximo = null;
+            while (itens != null) {
+                if (posicao >= itens.length) {
+                    itens = pilhaItens.poll();
+                    posicao = itens == null ? 0 : pilhaPosicoes.pop();
+                    continue;
+                }
+                Object k = itens[posicao];
+                Object v = itens[posicao + 1];
+                posicao += 2;
+                if (k == null) {
+                    entrar((No) v);
+                } else {
+                    proximo = chaves ? k : v;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return proximo != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (proximo == null) {
+                throw new NoSuchElementException();
+            }
+            V valor = (V) proximo;
+            avancar();
+            return valor;
+        }
+    }
+}
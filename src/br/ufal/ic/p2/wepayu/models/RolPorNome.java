@@ -0,0 +1,165 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Ids de empregados em ordem de nome (String.CASE_INSENSITIVE_ORDER, como a folha ordena) e, no
+// mesmo nome, em ordem de criacao. E imutavel e dividido em blocos de ate 2 * TAMANHO_BLOCO
+// itens: incluir ou retirar um empregado copia apenas o seu bloco e o vetor de blocos, e as
+// versoes anteriores continuam validas.
+final class RolPorNome {
+    private static final int TAMANHO_BLOCO = 64;
+    static final RolPorNome VAZIO = new RolPorNome(new Item[0][], 0);
+
+    private final Item[][] blocos;
+    private final int tamanho;
+
+    private RolPorNome(Item[][] blocos, int tamanho) {
+        this.blocos = blocos;
+        this.tamanho = tamanho;
+    }
+
+    int tamanho() {
+        return tamanho;
+    }
+
+    RolPorNome com(String nome, String id) {
+        Item item = new Item(nome, id);
+        if (blocos.length == 0) {
+            return new RolPorNome(new Item[][]{{item}}, 1);
+        }
+        int b = bloco(item);
+        Item[] bloco = blocos[b];
+        int lugar = -Arrays.binarySearch(bloco, item, RolPorNome::comparar) - 1;
+        if (lugar < 0) {
+            return this;
+        }
+        Item[] novo = new Item[bloco.length + 1];
+        System.arraycopy(bloco, 0, novo, 0, lugar);
+        novo[lugar] = item;
+        System.arraycopy(bloco, lugar, novo, lugar + 1, bloco.length - lugar);
+        if (novo.length <= 2 * TAMANHO_BLOCO) {
+            Item[][] novosBlocos = blocos.clone();
+            novosBlocos[b] = novo;
+            return new RolPorNome(novosBlocos, tamanho + 1);
+        }
+        Item[][] novosBlocos = new Item[blocos.length + 1][];
+        System.arraycopy(blocos, 0, novosBlocos, 0, b);
+        novosBlocos[b] = Arrays.copyOfRange(novo, 0, TAMANHO_BLOCO);
+        novosBlocos[b + 1] = Arrays.copyOfRange(novo, TAMANHO_BLOCO, novo.length);
+        System.arraycopy(blocos, b + 1, novosBlocos, b + 2, blocos.length - b - 1);
+        return new RolPorNome(novosBlocos, tamanho + 1);
+    }
+
+    RolPorNome sem(String nome, String id) {
+        if (blocos.length == 0) {
+            return this;
+        }
+        Item item = new Item(nome, id);
+        int b = bloco(item);
+        Item[] bloco = blocos[b];
+        int lugar = Arrays.binarySearch(bloco, item, RolPorNome::comparar);
+        if (lugar < 0) {
+            return this;
+        }
+        if (bloco.length == 1) {
+            Item[][] novosBlocos = new Item[blocos.length - 1][];
+            System.arraycopy(blocos, 0, novosBlocos, 0, b);
+            System.arraycopy(blocos, b + 1, novosBlocos, b, novosBlocos.length - b);
+            return new RolPorNome(novosBlocos, tamanho - 1);
+        }
+        Item[] novo = new Item[bloco.length - 1];
+        System.arraycopy(bloco, 0, novo, 0, lugar);
+        System.arraycopy(bloco, lugar + 1, novo, lugar, novo.length - lugar);
+        Item[][] novosBlocos = blocos.clone();
+        novosBlocos[b] = novo;
+        return new RolPorNome(novosBlocos, tamanho - 1);
+    }
+
+    List<String> ids() {
+        List<String> ids = new ArrayList<>(tamanho);
+        for (Item[] bloco : blocos) {
+            for (Item item : bloco) {
+                ids.add(item.id);
+            }
+        }
+        return ids;
+    }
+
+    // visita os ids na ordem, sem montar a lista
+    void paraCada(Consumer<String> acao) {
+        for (Item[] bloco : blocos) {
+            for (Item item : bloco) {
+                acao.accept(item.id);
+            }
+        }
+    }
+
+    // ids de varios rois numa so lista, na mesma ordem; sao poucos rois, entao basta escolher o
+    // menor entre as cabecas a cada passo
+    static List<String> intercalar(List<RolPorNome> rois) {
+        if (rois.size() == 1) {
+            return rois.get(0).ids();
+        }
+        int total = 0;
+        for (RolPorNome rol : rois) {
+            total += rol.tamanho;
+        }
+        List<String> ids = new ArrayList<>(total);
+        int[] blocoAtual = new int[rois.size()];
+        int[] posicaoAtual = new int[rois.size()];
+        while (ids.size() < total) {
+            int menor = -1;
+            Item itemMenor = null;
+            for (int r = 0; r < rois.size(); r++) {
+                Item[][] blocos = rois.get(r).blocos;
+                if (blocoAtual[r] < blocos.length) {
+                    Item item = blocos[blocoAtual[r]][posicaoAtual[r]];
+                    if (itemMenor == null || comparar(item, itemMenor) < 0) {
+                        menor = r;
+                        itemMenor = item;
+                    }
+                }
+            }
+            ids.add(itemMenor.id);
+            if (++posicaoAtual[menor] == rois.get(menor).blocos[blocoAtual[menor]].length) {
+                blocoAtual[menor]++;
+                posicaoAtual[menor] = 0;
+            }
+        }
+        return ids;
+    }
+
+    // primeiro bloco cujo ultimo item nao vem antes de 'item' (o ultimo, se nenhum)
+    private int bloco(Item item) {
+        int baixo = 0;
+        int alto = blocos.length - 1;
+        while (baixo < alto) {
+            int meio = (baixo + alto) >>> 1;
+            Item[] bloco = blocos[meio];
+            if (comparar(bloco[bloco.length - 1], item) < 0) {
+                baixo = meio + 1;
+            } else {
+                alto = meio;
+            }
+        }
+        return baixo;
+    }
+
+    private static int comparar(Item a, Item b) {
+        int porNome = String.CASE_INSENSITIVE_ORDER.compare(a.nome, b.nome);
+        return porNome != 0 ? porNome : Estado.compararCriacao(a.id, b.id);
+    }
+
+    private static final class Item {
+        private final String nome;
+        private final String id;
+
+        private Item(String nome, String id) {
+            this.nome = nome == null ? "" : nome;
+            this.id = id;
+        }
+    }
+}
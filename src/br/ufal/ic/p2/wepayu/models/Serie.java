@@ -0,0 +1,92 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+// Historico imutavel de lancamentos de um empregado que so cresce no final. Ha dois motores:
+// ListaPersistente, que guarda os objetos no heap (padrao), e SerieMapeada, que guarda data e
+// valor em colunas de arquivos mapeados em memoria (-Dwepayu.armazenamento=mapeado).
+//
+// Alem de List, a serie expoe dia e valor de cada posicao para que as consultas da folha possam
+// percorre-la sem montar um objeto por lancamento. As consultas por periodo usam o indice por dia
+// (IndiceDiario), montado na primeira consulta de uma versao e levado adiante pelas seguintes.
+abstract class Serie<T> extends AbstractList<T> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final boolean MAPEADA = "mapeado".equals(System.getProperty("wepayu.armazenamento"));
+
+    private transient volatile IndiceDiario indice;
+
+    static <T> Serie<T> vazia(TipoLancamento<T> tipo, String dono) {
+        return MAPEADA ? new SerieMapeada<>(tipo, dono) : tipo.listaVazia();
+    }
+
+    static <T> Serie<T> de(TipoLancamento<T> tipo, String dono, Collection<? extends T> itens) {
+        if (itens instanceof Serie) {
+            @SuppressWarnings("unchecked")
+            Serie<T> serie = (Serie<T>) itens;
+            return serie;
+        }
+        Serie<T> serie = vazia(tipo, dono);
+        if (itens != null) {
+            for (T item : itens) {
+                serie = serie.com(item);
+            }
+        }
+        return serie;
+    }
+
+    // dia desde 1970 da data do lancamento
+    abstract int dia(int indice);
+
+    // texto da data quando ele nao e a forma d/M/yyyy do dia (zeros a esquerda etc.), ou null
+    abstract String dataPorExtenso(int indice);
+
+    abstract double valor(int indice);
+
+    String data(int indice) {
+        String texto = dataPorExtenso(indice);
+        return texto != null ? texto : Datas.texto(dia(indice));
+    }
+
+    Serie<T> com(T item) {
+        Serie<T> nova = acrescentar(item);
+        IndiceDiario atual = indice;
+        if (atual != null) {
+            nova.indice = atual.com(nova, nova.dia(size()), nova.valor(size()), nova.dataPorExtenso(size()) != null);
+        }
+        return nova;
+    }
+
+    IndiceDiario indice() {
+        IndiceDiario atual = indice;
+        if (atual == null) {
+            atual = IndiceDiario.de(this, tipo() == TipoLancamento.CARTOES);
+            indice = atual;
+        }
+        return atual;
+    }
+
+    abstract TipoLancamento<T> tipo();
+
+    abstract Serie<T> acrescentar(T item);
+
+    // versao com apenas os n primeiros lancamentos, compartilhando o armazenamento
+    abstract Serie<T> prefixo(int n);
+
+    abstract boolean ehPrefixoDe(Serie<T> outra);
+
+    void verificarIndice(int indice) {
+        if (indice < 0 || indice >= size()) {
+            throw new IndexOutOfBoundsException("Indice: " + indice + ", tamanho: " + size());
+        }
+    }
+
+    // grava como ArrayList, mantendo o formato dos arquivos ja existentes
+    Object writeReplace() {
+        return new ArrayList<>(this);
+    }
+}
@@ -0,0 +1,113 @@
+package br.ufal.ic.p2.wepayu.models;
+
+// Serie cujos lancamentos ficam nas colunas mapeadas do ArmazemMapeado; no heap fica so o vetor
+// com a linha de cada lancamento. Versoes sucessivas dividem esse vetor como em ListaPersistente.
+// get() monta o objeto a partir das colunas; dia(), dataPorExtenso() e valor() leem direto delas.
+final class SerieMapeada<T> extends Serie<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final TipoLancamento<T> tipo;
+    private final int dono;
+    private final long[] linhas;
+    private final int tamanho;
+    private final int[] ocupados;
+
+    SerieMapeada(TipoLancamento<T> tipo, String dono) {
+        this(tipo, numeroDoEmpregado(dono), new long[0], 0, new int[]{0});
+    }
+
+    private SerieMapeada(TipoLancamento<T> tipo, int dono, long[] linhas, int tamanho, int[] ocupados) {
+        this.tipo = tipo;
+        this.dono = dono;
+        this.linhas = linhas;
+        this.tamanho = tamanho;
+        this.ocupados = ocupados;
+    }
+
+    @Override
+    TipoLancamento<T> tipo() {
+        return tipo;
+    }
+
+    @Override
+    SerieMapeada<T> acrescentar(T item) {
+        long linha = tipo.armazem().acrescentar(dono, tipo.dia(item), tipo.dataPorExtenso(item), tipo.valor(item));
+        synchronized (ocupados) {
+            if (ocupados[0] == tamanho && tamanho < linhas.length) {
+                linhas[tamanho] = linha;
+                ocupados[0] = tamanho + 1;
+                return new SerieMapeada<>(tipo, dono, linhas, tamanho + 1, ocupados);
+            }
+        }
+        long[] novas = new long[Math.max(4, tamanho * 2)];
+        System.arraycopy(linhas, 0, novas, 0, tamanho);
+        novas[tamanho] = linha;
+        return new SerieMapeada<>(tipo, dono, novas, tamanho + 1, new int[]{tamanho + 1});
+    }
+
+    @Override
+    SerieMapeada<T> prefixo(int n) {
+        if (n == tamanho) {
+            return this;
+        }
+        return new SerieMapeada<>(tipo, dono, linhas, n, ocupados);
+    }
+
+    // cada linha e gravada uma unica vez, entao linhas iguais sao o mesmo lancamento
+    @Override
+    boolean ehPrefixoDe(Serie<T> outra) {
+        if (!(outra instanceof SerieMapeada) || tamanho > outra.size()) {
+            return false;
+        }
+        long[] outras = ((SerieMapeada<T>) outra).linhas;
+        if (linhas == outras) {
+            return true;
+        }
+        for (int i = 0; i < tamanho; i++) {
+            if (linhas[i] != outras[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    String dataPorExtenso(int indice) {
+        verificarIndice(indice);
+        return tipo.armazem().dataPorExtenso(linhas[indice]);
+    }
+
+    @Override
+    double valor(int indice) {
+        verificarIndice(indice);
+        return tipo.armazem().valor(linhas[indice]);
+    }
+
+    @Override
+    int dia(int indice) {
+        verificarIndice(indice);
+        return tipo.armazem().dia(linhas[indice]);
+    }
+
+    @Override
+    public T get(int indice) {
+        verificarIndice(indice);
+        ArmazemMapeado armazem = tipo.armazem();
+        long linha = linhas[indice];
+        return tipo.criar(armazem.dia(linha), armazem.dataPorExtenso(linha), armazem.valor(linha));
+    }
+
+    @Override
+    public int size() {
+        return tamanho;
+    }
+
+    // parte numerica de EMPn, gravada na coluna de empregado
+    private static int numeroDoEmpregado(String id) {
+        try {
+            return Integer.parseInt(id.substring(3));
+        } catch (NumberFormatException | IndexOutOfBoundsException | NullPointerException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package br.ufal.ic.p2.wepayu.models;
+
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+// Um dos historicos de um empregado (cartoes, vendas ou taxas): como tirar de cada lancamento o
+// dia, o texto da data quando ele nao e d/M/yyyy e o valor, e como remonta-lo a partir deles.
+final class TipoLancamento<T> {
+    static final TipoLancamento<CartaoPonto> CARTOES =
+            new TipoLancamento<>("cartoes", CartaoPonto::getDia, CartaoPonto::getDataPorExtenso,
+                    CartaoPonto::getHoras, CartaoPonto::new);
+    static final TipoLancamento<Venda> VENDAS =
+            new TipoLancamento<>("vendas", Venda::getDia, Venda::getDataPorExtenso,
+                    Venda::getValor, Venda::new);
+    static final TipoLancamento<TaxaServico> TAXAS =
+            new TipoLancamento<>("taxas", TaxaServico::getDia, TaxaServico::getDataPorExtenso,
+                    TaxaServico::getValor, TaxaServico::new);
+
+    interface Construtor<T> {
+        T criar(int dia, String dataPorExtenso, double valor);
+    }
+
+    final String nome;
+    private final ToIntFunction<T> dia;
+    private final Function<T, String> dataPorExtenso;
+    private final ToDoubleFunction<T> valor;
+    private final Construtor<T> construtor;
+    private final ListaPersistente<T> vazia;
+    // so existe com o motor mapeado (ver Serie)
+    private final ArmazemMapeado armazem;
+
+    private TipoLancamento(String nome, ToIntFunction<T> dia, Function<T, String> dataPorExtenso,
+                           ToDoubleFunction<T> valor, Construtor<T> construtor) {
+        this.nome = nome;
+        this.dia = dia;
+        this.dataPorExtenso = dataPorExtenso;
+        this.valor = valor;
+        this.construtor = construtor;
+        this.vazia = new ListaPersistente<>(this);
+        this.armazem = Serie.MAPEADA ? new ArmazemMapeado("empregados." + nome + ".") : null;
+    }
+
+    int dia(T item) {
+        return dia.applyAsInt(item);
+    }
+
+    String dataPorExtenso(T item) {
+        return dataPorExtenso.apply(item);
+    }
+
+    double valor(T item) {
+        return valor.applyAsDouble(item);
+    }
+
+    T criar(int dia, String dataPorExtenso, double valor) {
+        return construtor.criar(dia, dataPorExtenso, valor);
+    }
+
+    // a partir da data como texto (diario, checkpoints antigos)
+    T criar(String data, double valor) {
+        int dia = Datas.diaDoLancamento(data);
+        return construtor.criar(dia, Datas.porExtenso(data, dia), valor);
+    }
+
+    ListaPersistente<T> listaVazia() {
+        return vazia;
+    }
+
+    ArmazemMapeado armazem() {
+        return armazem;
+    }
+
+    // Apaga as colunas mapeadas; so pode ser chamado quando nenhuma serie mapeada esta em uso
+    static void descartarArmazens() {
+        for (TipoLancamento<?> tipo : new TipoLancamento<?>[]{CARTOES, VENDAS, TAXAS}) {
+            if (tipo.armazem != null) {
+                tipo.armazem.descartar();
+            }
+        }
+    }
+}
@@ -1,19 +1,30 @@
 package br.ufal.ic.p2.wepayu.models;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 
 public class Venda implements Serializable {
 
-    private String data;
+    private static final long serialVersionUID = -711983391945883423L;
+    // grava no formato antigo, com a data como texto
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("data", String.class),
+            new ObjectStreamField("valor", double.class)
+    };
+
+    private int dia;
+    private String dataPorExtenso;
     private double valor;
 
     public Venda(String data, String valorStr) {
         if (data == null || data.trim().isEmpty()) {
             throw new IllegalArgumentException("Data invalida.");
         }
-        validarData(data);
+        int dia = Datas.diaDoLancamento(data);
 
         if (valorStr == null || valorStr.trim().isEmpty()) {
             throw new IllegalArgumentException("Valor deve ser positivo.");
@@ -29,24 +40,51 @@ public class Venda implements Serializable {
             throw new IllegalArgumentException("Valor deve ser positivo.");
         }
 
-        this.data = data;
+        this.dia = dia;
+        this.dataPorExtenso = Datas.porExtenso(data, dia);
     }
 
-    private void validarData(String data) {
-        SimpleDateFormat sdf = new SimpleDateFormat("d/M/yyyy");
-        sdf.setLenient(false);
-        try {
-            sdf.parse(data);
-        } catch (ParseException e) {
-            throw new IllegalArgumentException("Data invalida.");
-        }
+    // usado ao reler registros ja validados
+    Venda(int dia, String dataPorExtenso, double valor) {
+        this.dia = dia;
+        this.dataPorExtenso = dataPorExtenso;
+        this.valor = valor;
     }
 
     public String getData() {
-        return data;
+        return dataPorExtenso != null ? dataPorExtenso : Datas.texto(dia);
+    }
+
+    // dia desde 1970
+    int getDia() {
+        return dia;
+    }
+
+    // o texto da data quando ela nao esta na forma d/M/yyyy, ou null
+    String getDataPorExtenso() {
+        return dataPorExtenso;
     }
 
     public double getValor() {
         return valor;
     }
-}
\ No newline at end of file
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField campos = out.putFields();
+        campos.put("data", getData());
+        campos.put("valor", valor);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField campos = in.readFields();
+        String texto = (String) campos.get("data", null);
+        try {
+            dia = Datas.diaDoLancamento(texto);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException("Data invalida.");
+        }
+        dataPorExtenso = Datas.porExtenso(texto, dia);
+        valor = campos.get("valor", 0.0);
+    }
+}
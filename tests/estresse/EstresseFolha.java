@@ -0,0 +1,67 @@
+import br.ufal.ic.p2.wepayu.Facade;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// troca o paralelismo enquanto outras threads rodam a folha; nenhuma delas pode falhar
+// fica fora do Main; compile contra as classes do projeto e rode com java EstresseFolha
+public class EstresseFolha {
+    private static final int LEITORES = 4;
+    private static final int FOLHAS_POR_LEITOR = 150;
+
+    public static void main(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        for (int i = 0; i < 120; i++) {
+            String id = facade.criarEmpregado("Empregado " + i, "Rua " + i, "horista", "10,00");
+            facade.lancaCartao(id, "3/1/2005", "9");
+            facade.criarEmpregado("Assalariado " + i, "Rua " + i, "assalariado", "2000,00");
+            facade.criarEmpregado("Comissionado " + i, "Rua " + i, "comissionado", "1500,00", "0,05");
+        }
+
+        AtomicReference<Throwable> falha = new AtomicReference<>();
+        AtomicInteger leitoresAtivos = new AtomicInteger(LEITORES);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < LEITORES; t++) {
+            int leitor = t;
+            threads.add(new Thread(() -> {
+                try {
+                    File saida = File.createTempFile("folha-estresse", ".txt");
+                    saida.deleteOnExit();
+                    for (int i = 0; i < FOLHAS_POR_LEITOR && falha.get() == null; i++) {
+                        // cada leitor anda por datas diferentes, para nao achar a folha em cache
+                        int dia = 1 + (leitor * FOLHAS_POR_LEITOR + i) % 28;
+                        int mes = 1 + (leitor * FOLHAS_POR_LEITOR + i) / 28 % 12;
+                        facade.rodaFolha(dia + "/" + mes + "/" + (2005 + i % 7), saida.getPath());
+                    }
+                } catch (Throwable e) {
+                    falha.compareAndSet(null, e);
+                } finally {
+                    leitoresAtivos.decrementAndGet();
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            int i = 0;
+            while (leitoresAtivos.get() > 0 && falha.get() == null) {
+                facade.alteraParalelismoFolha(String.valueOf(2 + i++ % 3));
+            }
+        }));
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        facade.alteraParalelismoFolha("1");
+        facade.zerarSistema();
+
+        if (falha.get() != null) {
+            throw new IllegalStateException("Folha falhou enquanto o paralelismo mudava.", falha.get());
+        }
+    }
+}